@@ -0,0 +1,7 @@
+#!/bin/bash
+# Compile the solver and the benchmarks, and run the benchmarks whose names
+# contain the optional filter, e.g. ./bench.sh getNextBoxStates
+OUT=bin
+mkdir -p $OUT
+javac -encoding UTF-8 -d $OUT src/*.java bench/*.java || exit 1
+java -cp $OUT SolverBenchmarks "$@"
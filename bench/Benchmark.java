@@ -0,0 +1,78 @@
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * A minimal benchmark harness, since the solver is built without any
+ * dependencies.
+ * <p>
+ * Every benchmark is run for a number of warmup iterations, so that the JIT
+ * compiler has settled, and then for a number of measured iterations of a
+ * fixed duration. The time per operation of every measured iteration is
+ * reported, with the mean and the spread. The results of the operations are
+ * folded into a sink, so that the JIT compiler can't remove the work.
+ */
+public class Benchmark {
+
+	private static final int WARMUP_ITERATIONS = 3;
+	private static final int MEASURED_ITERATIONS = 5;
+	private static final long ITERATION_NANOS = 1000L * 1000 * 1000;
+
+	/**
+	 * A single benchmarked operation.
+	 */
+	public interface Operation {
+		Object run();
+	}
+
+	private static int sink = 0;
+
+	private final List<String> names = new ArrayList<>();
+	private final List<Operation> operations = new ArrayList<>();
+
+	public void add(String name, Operation operation) {
+		names.add(name);
+		operations.add(operation);
+	}
+
+	/**
+	 * Run the benchmarks whose names contain the filter.
+	 *
+	 * @param filter The filter, or <code>null</code> to run all benchmarks
+	 */
+	public void run(String filter) {
+		System.out.println(String.format("%-40s %14s %12s", "Benchmark", "us/op", "spread"));
+		for (int i = 0; i < names.size(); i++) {
+			if (filter != null && !names.get(i).contains(filter))
+				continue;
+			Operation operation = operations.get(i);
+			for (int iteration = 0; iteration < WARMUP_ITERATIONS; iteration++)
+				measure(operation);
+			double[] results = new double[MEASURED_ITERATIONS];
+			double mean = 0;
+			for (int iteration = 0; iteration < MEASURED_ITERATIONS; iteration++) {
+				results[iteration] = measure(operation);
+				mean += results[iteration] / MEASURED_ITERATIONS;
+			}
+			double spread = 0;
+			for (double result : results)
+				spread = Math.max(spread, Math.abs(result - mean));
+			System.out.println(String.format("%-40s %14.3f %12.3f", names.get(i), mean / 1000, spread / 1000));
+		}
+		if (sink == 42)
+			System.out.println(); // only here to keep the sink alive
+	}
+
+	// the mean time of one operation in nanoseconds
+	private static double measure(Operation operation) {
+		long operations = 0;
+		long start = System.nanoTime();
+		long elapsed;
+		do {
+			Object result = operation.run();
+			sink ^= result == null ? 0 : System.identityHashCode(result);
+			operations++;
+			elapsed = System.nanoTime() - start;
+		} while (elapsed < ITERATION_NANOS);
+		return (double) elapsed / operations;
+	}
+}
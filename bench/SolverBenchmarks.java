@@ -0,0 +1,106 @@
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.List;
+
+/**
+ * Benchmarks of the hot paths of the solver, and of whole solves of some
+ * representative maps. Run from the root of the repository with
+ * <code>./bench.sh [filter]</code>.
+ */
+public class SolverBenchmarks {
+
+	// a map with a goal area and tunnels, and maps that are solved in well under a second
+	private static final String PREPROCESSING_MAP = "maps/kattis/148.map";
+	private static final String[] SOLVED_MAPS = {
+		"maps/kattis/148.map",
+		"maps/kattis/260.map",
+		"maps/kattis/467.map",
+		"maps/test100/test000.in",
+		"maps/test100/test010.in",
+	};
+	// how far into a search the states of the state benchmarks are taken
+	private static final int SEARCH_STEPS = 200;
+
+	public static void main(String[] args) throws IOException {
+		Benchmark benchmark = new Benchmark();
+		addStateBenchmarks(benchmark, read(PREPROCESSING_MAP));
+		for (String map : SOLVED_MAPS)
+			addSolveBenchmark(benchmark, map);
+		benchmark.run(args.length > 0 ? args[0] : null);
+	}
+
+	private static void addStateBenchmarks(Benchmark benchmark, final List<String> map) {
+		final GameState state = searchedState(ForwardsGameState.calculateBoard(map));
+		final AbstractGameState abstractState = (AbstractGameState) state;
+		final Board board = state.getBoard();
+		final GameState copy = copy(abstractState);
+
+		benchmark.add("calculateBoard", new Benchmark.Operation() {
+			@Override public Object run() {
+				return ForwardsGameState.calculateBoard(map);
+			}
+		});
+		benchmark.add("getNextBoxStates", new Benchmark.Operation() {
+			@Override public Object run() {
+				return state.getNextBoxStates();
+			}
+		});
+		benchmark.add("player BFS", new Benchmark.Operation() {
+			@Override public Object run() {
+				Reachability reachability = board.getReachability();
+				reachability.explore(state.getBoxCells(), state.getPlayerCell(), -1);
+				return reachability.getTopLeftCell();
+			}
+		});
+		benchmark.add("getHash of a new state", new Benchmark.Operation() {
+			@Override public Object run() {
+				return copy(abstractState).getHash();
+			}
+		});
+		benchmark.add("hashCode", new Benchmark.Operation() {
+			@Override public Object run() {
+				return state.hashCode();
+			}
+		});
+		benchmark.add("equals", new Benchmark.Operation() {
+			@Override public Object run() {
+				return state.equals(copy);
+			}
+		});
+		benchmark.add("getDistanceToGoal", new Benchmark.Operation() {
+			@Override public Object run() {
+				return state.getDistanceToGoal();
+			}
+		});
+	}
+
+	private static void addSolveBenchmark(Benchmark benchmark, String mapFile) throws IOException {
+		final List<String> map = read(mapFile);
+		benchmark.add("solve " + mapFile, new Benchmark.Operation() {
+			@Override public Object run() {
+				AStarAlgorithm aStar = new AStarAlgorithm(BackwardsGameState.calculateBoard(map));
+				while (!aStar.nextStep());
+				return aStar.getSolution();
+			}
+		});
+	}
+
+	// a state from the middle of a search, rather than the start of it
+	private static GameState searchedState(GameState start) {
+		AStarAlgorithm aStar = new AStarAlgorithm(start);
+		for (int i = 0; i < SEARCH_STEPS && !aStar.nextStep(); i++);
+		return aStar.current;
+	}
+
+	// an equal state that hasn't been hashed yet
+	private static AbstractGameState copy(AbstractGameState state) {
+		return new ForwardsGameState(state.getBoard(), state.player, state.getBoxCells(),
+				state.boxHash, state.getPush());
+	}
+
+	private static List<String> read(String mapFile) throws IOException {
+		return Files.readAllLines(Paths.get(mapFile), StandardCharsets.UTF_8);
+	}
+}
@@ -4,6 +4,7 @@ time(
 for f in $FILES
 do
 	echo -e "\n$f"
-	(java -cp bin/ Main < "$f" ) & sleep 11 ; kill -9 `ps aux | grep java | awk '{print $2}'` > /dev/null && echo "Execution terminated!"
+	# stop the search in time to report it, before it gets killed
+	(java -cp bin/ Main --deadline 10000 < "$f" ) & sleep 11 ; kill -9 `ps aux | grep java | awk '{print $2}'` > /dev/null && echo "Execution terminated!"
 done
 )
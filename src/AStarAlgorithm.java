@@ -1,44 +1,79 @@
-import java.util.Comparator;
+import java.io.PrintStream;
 import java.util.Deque;
-import java.util.HashMap;
-import java.util.HashSet;
+import java.util.LinkedList;
 import java.util.List;
-import java.util.Map;
-import java.util.Set;
-import java.util.TreeSet;
 
 /**
  * An implementation of the GameTree class which uses the 
  * A* algorithm to traverse the game tree.
  */
-public class AStarAlgorithm {
+public class AStarAlgorithm implements Search {
 
-	private static final int GOAL_DISTANCE_WEIGHT = 10;
-	private static final int MOVE_WEIGHT = 0;
-	private static final int OBSTACLE_WEIGHT = 0;
-	
-	private static final int STATE_DIFFERENCE_WEIGHT = 0;
-	
-	final Map<GameState, GameState> cameFrom = new HashMap<>();
-	final Map<GameState, Integer> gScore  = new HashMap<>();
-	final Map<GameState, Integer> fScore = new HashMap<>();
-	final Set<GameState> visitedNodes = new HashSet<>();
-	final Set<GameState> closedSet = new HashSet<>();
-	final TreeSet<GameState> openSet = new TreeSet<>(getComparator());
+	// the heuristic of a state no solution can be found from
+	static final int UNSOLVABLE = Integer.MAX_VALUE;
+	
+	// the share of the maximum heap a search may use for its transposition table
+	static final int DEFAULT_MEMORY_FRACTION = 4;
+	
+	// g-scores, parents and open/closed flags of every known state
+	final TranspositionTable table;
+	// open states keyed by their f-score
+	final BucketQueue<GameState> openSet = new BucketQueue<>();
 	final GameState start;
+	final SearchPolicy policy;
 	GameState current;
 	
 	private boolean isDone = false;
-	GameState rendevouz = null;
+	int rendevouz = TranspositionTable.NOT_FOUND;
+	// the cell the player walks to from the rendevouz to meet the other search
+	private int linkCell = -1;
 	private AStarAlgorithm otherAStar;
 	
+	// the shortest solution an anytime search has found so far
+	private Solution bestSolution;
+	private int bestSolutionG = Integer.MAX_VALUE;
+	private final long startNanos = System.nanoTime();
+	private int expandedStates = 0;
+	
+	private final SearchMetrics metrics;
+	// where to write snapshots of the metrics to, and how often
+	private PrintStream metricsOut;
+	private long metricsIntervalNanos;
+	private long nextMetricsNanos;
+	
 
 	public AStarAlgorithm(GameState start) {
+		this(start, SearchPolicy.DEFAULT);
+	}
+	
+	public AStarAlgorithm(GameState start, SearchPolicy policy) {
+		this(start, Runtime.getRuntime().maxMemory() / DEFAULT_MEMORY_FRACTION, policy);
+	}
+	
+	public AStarAlgorithm(GameState start, long memoryBudget) {
+		this(start, memoryBudget, SearchPolicy.DEFAULT);
+	}
+	
+	/**
+	 * Create a search whose transposition table is limited to roughly the
+	 * given number of bytes. When the table is full the search forgets
+	 * closed states, and drops new states it has no room for, instead of
+	 * running out of memory.
+	 * 
+	 * @param start The state to search from
+	 * @param memoryBudget The memory budget of the transposition table in bytes
+	 * @param policy The order to expand states in
+	 */
+	public AStarAlgorithm(GameState start, long memoryBudget, SearchPolicy policy) {
 		this.start = start;
-		gScore.put(start, 0);
-		fScore.put(start, estimatedTotalCost(start, gScore));
-		openSet.add(start);
-		cameFrom.put(start, null);
+		this.policy = policy;
+		metrics = start.getBoard().getMetrics();
+		table = new TranspositionTable(memoryBudget);
+		table.insert(start.getHash(), 0, TranspositionTable.NOT_FOUND,
+				start.getPlayerCell(), start.getPush());
+		int startCost = heuristic(start);
+		if (startCost != UNSOLVABLE)
+			addOpen(start, policy.priority(0, startCost));
 		current = start;
 	}
 	
@@ -46,72 +81,180 @@ public class AStarAlgorithm {
 		otherAStar = aStar;
 	}
 	
-	public boolean nextStep() {
+	/**
+	 * Search until the search is done or the deadline has passed, whichever
+	 * comes first. An anytime search keeps the shortest solution it has found
+	 * by then, see {@link #hasSolution()}.
+	 * 
+	 * @param deadlineNanos The deadline, as a {@link System#nanoTime()} value
+	 * @return <code>true</code> if the search is done
+	 */
+	@Override public boolean runUntil(long deadlineNanos) {
+		while (System.nanoTime() - deadlineNanos < 0)
+			if (nextStep())
+				return true;
+		return false;
+	}
+	
+	/**
+	 * Write a snapshot of the {@link SearchMetrics} of the board as a JSON
+	 * line every so often while searching.
+	 * 
+	 * @param out Where to write the snapshots
+	 * @param intervalMillis The time between snapshots
+	 */
+	public void recordMetrics(PrintStream out, long intervalMillis) {
+		metricsOut = out;
+		metricsIntervalNanos = intervalMillis * 1000000L;
+		nextMetricsNanos = System.nanoTime();
+	}
+	
+	public SearchMetrics.Snapshot getMetrics() {
+		return metrics.snapshot(openSet.size());
+	}
+	
+	@Override public boolean nextStep() {
 		if(openSet.isEmpty() || isDone) {
 			return true;
 		}
-		
-		current = openSet.pollFirst();
-		if(canFinish(current))
+		// only look at the clock every so often
+		if (metricsOut != null && (expandedStates & 0xff) == 0
+				&& System.nanoTime() - nextMetricsNanos >= 0) {
+			metricsOut.println(getMetrics().toJson());
+			nextMetricsNanos += metricsIntervalNanos;
+		}
+		if (bestSolution != null && isOutOfTime()) {
+			isDone = true;
 			return true;
-		closedSet.add(current);
-		visitedNodes.add(current);
+		}
+		
+		long traceStart = Trace.start();
+		current = openSet.poll();
+		Trace.end(Trace.Phase.OPEN_SET, traceStart);
+		int currentSlot = table.find(current.getHash());
+		if (table.isClosed(currentSlot))
+			return openSet.isEmpty(); // already expanded as a step of a goal macro
+		if (bestSolution != null && table.getG(currentSlot) + 1 >= bestSolutionG)
+			return openSet.isEmpty(); // can't lead to a shorter solution
+		if(canFinish(current, currentSlot))
+			return isDone;
+		table.close(currentSlot);
+		expandedStates++;
+		metrics.increment(SearchMetrics.Counter.EXPANDED);
 		
 		List<GameState> goalMacro = current.tryGoalMacro();
 		if (goalMacro != null && !goalMacro.isEmpty()) {
-			GameState previousState = current;
-			int cost = 1;
+			metrics.increment(SearchMetrics.Counter.GOAL_MACROS);
+			table.reserve(goalMacro.size());
+			currentSlot = table.find(current.getHash());
+			int g = table.getG(currentSlot);
 			for (GameState state : goalMacro) {
-				visitedNodes.add(state);
-				closedSet.add(state);
-				cameFrom.put(state, previousState);
-				gScore.put(state, gScore.get(current) + cost);
-				fScore.put(state, estimatedTotalCost(state, gScore));
-				previousState = state;
-				cost++;
+				g++;
+				int slot = table.find(state.getHash());
+				if (slot == TranspositionTable.NOT_FOUND) {
+					slot = table.insert(state.getHash(), g, currentSlot,
+							state.getPlayerCell(), state.getPush());
+					if (slot == TranspositionTable.NOT_FOUND)
+						break; // no room left for the rest of the macro
+				} else if (g < table.getG(slot) && !isAncestor(slot, currentSlot)) {
+					table.update(slot, g, currentSlot, state.getPlayerCell(), state.getPush());
+				} else {
+					break; // known by a path at least as short, so go on from there
+				}
+				table.close(slot);
+				current = state;
+				currentSlot = slot;
 			}
-			current = previousState;
 		}
 		
-		if (canFinish(current))
-			return true;
+		if (canFinish(current, currentSlot))
+			return isDone;
 		
 		List<GameState> nextStates = current.getNextBoxStates();
+		table.reserve(nextStates.size());
+		currentSlot = table.find(current.getHash());
+		int tentativeGScore = table.getG(currentSlot) + 1;
 		for(GameState neighbor : nextStates) {
-			if(visitedNodes.contains(neighbor)) {
-				continue;
-			}
-			int tentativeGScore = gScore.get(current) + 1;
-			if(closedSet.contains(neighbor)) {
-				if(tentativeGScore >= gScore.get(neighbor)) {
-					continue;
-				}
-			}
-
-			if(!openSet.contains(neighbor) || tentativeGScore < gScore.get(neighbor)) {
-				cameFrom.put(neighbor, current);
-				gScore.put(neighbor, tentativeGScore);
-				fScore.put(neighbor, estimatedTotalCost(neighbor, gScore));
-				if(!openSet.contains(neighbor)) {
-					openSet.add(neighbor);
-					visitedNodes.add(neighbor);
+			metrics.increment(SearchMetrics.Counter.GENERATED);
+			int slot = table.find(neighbor.getHash());
+			if (slot != TranspositionTable.NOT_FOUND)
+				metrics.increment(SearchMetrics.Counter.DUPLICATES);
+			if(slot == TranspositionTable.NOT_FOUND) {
+				int costToGoal = heuristic(neighbor);
+				if(costToGoal == UNSOLVABLE) {
+					metrics.increment(SearchMetrics.Counter.UNMATCHABLE);
+					continue; // a deadlock, so don't even remember it
 				}
+				slot = table.insert(neighbor.getHash(), tentativeGScore, currentSlot,
+						neighbor.getPlayerCell(), neighbor.getPush());
+				if(slot != TranspositionTable.NOT_FOUND)
+					addOpen(neighbor, policy.priority(tentativeGScore, costToGoal));
+			} else if(!table.isClosed(slot) && tentativeGScore < table.getG(slot)) {
+				// the neighbor instance replaces the queued one, since its
+				// push leads to it from the new parent
+				table.update(slot, tentativeGScore, currentSlot,
+						neighbor.getPlayerCell(), neighbor.getPush());
+				decreaseOpen(neighbor, policy.priority(tentativeGScore, heuristic(neighbor)));
+			} else if(policy.isAnytime() && tentativeGScore < table.getG(slot)) {
+				// an anytime search has to expand states again to shorten its solutions
+				table.update(slot, tentativeGScore, currentSlot,
+						neighbor.getPlayerCell(), neighbor.getPush());
+				table.reopen(slot);
+				addOpen(neighbor, policy.priority(tentativeGScore, heuristic(neighbor)));
 			}
 		}
 		
 		return false;
 	}
 	
-	private boolean canFinish(GameState current) {
+	// whether a slot is on the path from the start to another one
+	private boolean isAncestor(int slot, int of) {
+		for (int ancestor = of; ancestor != TranspositionTable.NOT_FOUND; ancestor = table.getParent(ancestor))
+			if (ancestor == slot)
+				return true;
+		return false;
+	}
+	
+	// the open set operations, timed for a trace
+	private void addOpen(GameState state, int priority) {
+		long traceStart = Trace.start();
+		openSet.add(state, priority);
+		Trace.end(Trace.Phase.OPEN_SET, traceStart);
+	}
+	
+	private void decreaseOpen(GameState state, int priority) {
+		long traceStart = Trace.start();
+		openSet.decreaseKey(state, priority);
+		Trace.end(Trace.Phase.OPEN_SET, traceStart);
+	}
+	
+	/*
+	 * Whether the current state ends the search, or for an anytime search,
+	 * whether it is a solution, which it goes on from without expanding it.
+	 */
+	private boolean canFinish(GameState current, int currentSlot) {
+		if (policy.isAnytime() && otherAStar == null && current.isDone()) {
+			if (table.getG(currentSlot) < bestSolutionG) {
+				bestSolutionG = table.getG(currentSlot);
+				bestSolution = reconstructPath(currentSlot);
+			}
+			table.close(currentSlot);
+			isDone = isOutOfTime() || openSet.isEmpty();
+			return true;
+		}
 		if(current.isDone() || hasReachedRendevouz(current)) {
 			isDone = true;
-			rendevouz = current;
+			rendevouz = currentSlot;
 			setRendevouzForOther(current);
 			return true;
 		}
 		return false;
 	}
 	
+	private boolean isOutOfTime() {
+		return System.nanoTime() - startNanos >= policy.getTimeLimitMillis() * 1000000L;
+	}
+	
 	private boolean hasReachedRendevouz(GameState current) {
 		if(otherAStar == null) {
 			return false;
@@ -122,86 +265,123 @@ public class AStarAlgorithm {
 	
 	private void setRendevouzForOther(GameState rendevouz) {
 		if(otherAStar != null) {
-			GameState otherRendevouz = otherAStar.findCorrespondingKey(rendevouz);
-			if (otherRendevouz.getPlayerLocation() != null) {
-				Deque<Move> movesToLink =
-						rendevouz.getPlayerMoveGameState(otherRendevouz.getPlayerLocation()).getMovesToHere();
-				rendevouz.getMovesToHere().addAll(movesToLink);
-			}
+			int otherRendevouz = otherAStar.table.find(rendevouz.getHash());
+			if (otherRendevouz != TranspositionTable.NOT_FOUND)
+				linkCell = otherAStar.table.getPlayerCell(otherRendevouz);
 			otherAStar.rendevouz = otherRendevouz;
 			otherAStar.isDone = true;
 		}
 	}
 	
 	private boolean contains(GameState state) {
-		return cameFrom.containsKey(state);
+		return table.find(state.getHash()) != TranspositionTable.NOT_FOUND;
 	}
 	
-	private GameState findCorrespondingKey (GameState key) {
-		for (GameState corrKey : cameFrom.keySet())
-			if (corrKey.equals(key))
-				return corrKey;
-		for (GameState corrKey : cameFrom.keySet())
-			if (corrKey.getBoxes().equals(key.getBoxes()))
-				return corrKey;
-		return null;
+	/**
+	 * Check whether the search has found a solution, which for an anytime
+	 * search may be before it is done.
+	 * 
+	 * @return <code>true</code> if {@link #getSolution()} has moves to return
+	 */
+	@Override public boolean hasSolution() {
+		return bestSolution != null || rendevouz != TranspositionTable.NOT_FOUND;
 	}
 	
-	public Solution getSolution() {
-		return reconstructPath(cameFrom, rendevouz);
+	public int getExpandedStates() {
+		return expandedStates;
 	}
 	
-	private Solution reconstructPath(Map<GameState, GameState> cameFrom, GameState endState) {
-		Solution solution = (start instanceof BackwardsGameState) 
-			? new BackwardSolution()
-			: new ForwardSolution();
-		GameState state = endState;
-		while (state != null) {
-			solution.prepend(state.getMovesToHere());
-			state = cameFrom.get(state);
+	/**
+	 * Get a summary of how far the search got, for reporting a search that
+	 * was stopped.
+	 * 
+	 * @return The numbers of expanded, open and known states
+	 */
+	@Override public String getStatistics() {
+		return getExpandedStates() + " expanded, " + openSet.size() + " open, "
+				+ table.size() + " known states";
+	}
+	
+	/**
+	 * Get the moves from the start to the state the search finished at.
+	 * 
+	 * @return The solution, which is empty if the search found none
+	 */
+	@Override public Solution getSolution() {
+		if (bestSolution != null)
+			return bestSolution;
+		if (rendevouz == TranspositionTable.NOT_FOUND)
+			return newSolution(start);
+		return reconstructPath(rendevouz);
+	}
+	
+	private Solution reconstructPath(int endSlot) {
+		int depth = 0;
+		for (int slot = endSlot; slot != TranspositionTable.NOT_FOUND; slot = table.getParent(slot))
+			depth++;
+		int[] pushes = new int[depth];
+		int[] playerCells = new int[depth];
+		int slot = endSlot;
+		for (int i = depth - 1; i >= 0; i--) {
+			pushes[i] = table.getPush(slot);
+			playerCells[i] = table.getPlayerCell(slot);
+			slot = table.getParent(slot);
 		}
+		
+		Solution solution = newSolution(start);
+		GameState end = replayPath(start, pushes, playerCells, solution);
+		if (linkCell >= 0)
+			replay(end, Push.NONE, linkCell, solution);
 		return solution;
 	}
-
-	private int estimatedTotalCost(GameState currentState, Map<GameState, Integer> gScore) {
-		return gScore.get(currentState) + estimatedCostToGoal(currentState);
+	
+	static Solution newSolution(GameState start) {
+		return (start instanceof BackwardsGameState) 
+			? new BackwardSolution()
+			: new ForwardSolution();
+	}
+	
+	/**
+	 * Replay a path found by a search, appending the moves of every step to
+	 * a solution. Only the pushes are stored, so the player walks in between
+	 * are found again. The start has no moves leading to it.
+	 * 
+	 * @param start The state the path starts in
+	 * @param pushes The pushes of the path, the first one being the start's
+	 * @param playerCells The player cells of the states on the path
+	 * @param solution The solution to append the moves to
+	 * @return The last state of the path
+	 */
+	static GameState replayPath(GameState start, int[] pushes, int[] playerCells, Solution solution) {
+		GameState state = start;
+		solution.append(new LinkedList<Move>());
+		for (int i = 1; i < pushes.length; i++)
+			state = replay(state, pushes[i], playerCells[i], solution);
+		return state;
+	}
+	
+	private static GameState replay(GameState state, int push, int playerCell, Solution solution) {
+		Deque<Move> moves = new LinkedList<>();
+		GameState next = state.replay(push, playerCell, moves);
+		if (next == null)
+			throw new IllegalStateException("Can't replay the push " + push + " from\n" + state);
+		solution.append(moves);
+		return next;
 	}
 
-	private int estimatedCostToGoal(GameState currentState) {
-		int cost = currentState.getDistanceToGoal() * GOAL_DISTANCE_WEIGHT;
-		cost += currentState.getMovesToHere().size() * MOVE_WEIGHT;
-		cost += currentState.numObstacles() * OBSTACLE_WEIGHT;
-		cost += (otherAStar == null ? 0 :
-			currentState.difference(otherAStar.current)) * STATE_DIFFERENCE_WEIGHT;
-		return cost;
-	}
-	
-	private Comparator<GameState> getComparator() {
-		return new Comparator<GameState>() {
-			@Override
-			public int compare(GameState state1, GameState state2) {
-				if(state1.equals(state2)) {
-					return 0;
-				} else if(!gScore.containsKey(state1)) {
-					return Integer.MAX_VALUE;
-				}
-				Integer myScore = fScore.get(state1);
-				if(myScore == null) {
-					myScore = estimatedTotalCost(state1, gScore);
-					fScore.put(state1, myScore);
-				}
-				Integer otherScore = fScore.get(state2);
-				if(otherScore == null) {
-					otherScore = estimatedTotalCost(state2, gScore);
-					fScore.put(state2, otherScore);
-				}
-				int score = myScore - otherScore;
-				if(score == 0) {
-					score = 1;
-				}
-				
-				return score;
-			}
-		};
+	/**
+	 * The estimated number of pushes left from a state, based on the state
+	 * alone. The {@link SearchPolicy} decides how it is weighed against the
+	 * pushes so far.
+	 * 
+	 * @param state The state to estimate
+	 * @return The estimated cost, or {@link #UNSOLVABLE} if the boxes can't
+	 * be matched to goals
+	 */
+	static int heuristic(GameState state) {
+		int distance = state.getDistanceToGoal();
+		if (distance == MatchingHeuristic.NO_MATCHING)
+			return UNSOLVABLE;
+		return distance;
 	}
 }
@@ -1,251 +1,225 @@
-import java.util.Collections;
+import java.util.BitSet;
 import java.util.Deque;
-import java.util.HashMap;
-import java.util.HashSet;
-import java.util.LinkedList;
-import java.util.List;
-import java.util.Map;
-import java.util.Queue;
-import java.util.Set;
 
 
 public abstract class AbstractGameState implements GameState {
 	
+	// normalized player cell of states without a player, and of finished states
+	private static final int NO_PLAYER_CELL = -1;
+	private static final int FINISHED_CELL = -2;
+	// normalized player cell of states that haven't been hashed yet
+	private static final int UNKNOWN_CELL = -3;
+	
+	// Move.values() copies its array on every call
+	protected static final Move[] MOVES = Move.values();
+	
 	// this is practically a singleton. can be ignored in equals/hashCode
 	protected final Board board;
-	protected final Deque<Move> movesToHere;
+	// the box move leading to this state, see Push
+	protected final int push;
 	
 	protected final Player player;
-	protected final Set<Box> boxes;
-	protected final Set<Box> movableBoxes; 
-	
-	private Location topLeftmostCorner = null;
-
-	AbstractGameState (Board board, Player player, Set<Box> boxes) {
-		this (board, player, boxes, new LinkedList<Move>());
-	}
+	/*
+	 * The boxes are stored as the set of board cells they occupy. The sets
+	 * are shared between states and must never be modified once a state has
+	 * been created. movableBoxes is the same instance as boxes until a box
+	 * is marked as finished.
+	 */
+	protected final BitSet boxes;
+	protected BitSet movableBoxes;
+	// Zobrist hash of the boxes alone, updated incrementally by successors
+	protected final long boxHash;
+	
+	/*
+	 * Normalizing the player takes a BFS, and most new states are pruned
+	 * before they are ever hashed, so both are computed on first use.
+	 */
+	private int normalizedPlayerCell = UNKNOWN_CELL;
+	private long hash;
 
-	AbstractGameState(Board board, Player player, Set<Box> boxes, Move lastMove) {
-		this (board, player, boxes, new LinkedList<Move>(Collections.singletonList(lastMove)));
+	AbstractGameState (Board board, Player player, BitSet boxes) {
+		this (board, player, boxes, board.hashBoxes(boxes), Push.NONE);
 	}
 
-	AbstractGameState(Board board, Player player, Set<Box> boxes, Deque<Move> movesToHere) {
-		this (board, player, boxes, new HashSet<Box> (boxes), movesToHere);
+	AbstractGameState(Board board, Player player, BitSet boxes, long boxHash, int push) {
+		this (board, player, boxes, boxes, boxHash, push);
 	}
 	
-	AbstractGameState(Board board, Player player, Set<Box> boxes, Set<Box> movableBoxes, Deque<Move> movesToHere) {
+	AbstractGameState(Board board, Player player, BitSet boxes, BitSet movableBoxes,
+			long boxHash, int push) {
 		this.board = board;
 		this.player = player;
 		this.boxes = boxes;
 		this.movableBoxes = movableBoxes;
-		this.movesToHere = movesToHere;
-		if (player != null)
-			topLeftmostCorner = findTopLeftmostCorner ();
+		this.boxHash = boxHash;
+		this.push = push;
 	}
-
+	
 	/**
-	 * Get the {@link Move} instance that caused this {@link BackwardsGameState}.
+	 * Create a new state of the same kind as this one, on the same board.
 	 * 
-	 * @return The final {@link Move} before this {@link BackwardsGameState}
+	 * @param player The player of the new state
+	 * @param boxes The box cells of the new state
+	 * @param boxHash The Zobrist hash of boxes
+	 * @param push The push leading to the new state
+	 * @return The new state
 	 */
-	@Override public Deque<Move> getMovesToHere () {
-		return movesToHere;
+	protected abstract AbstractGameState createState(Player player, BitSet boxes, long boxHash, int push);
+	
+	/**
+	 * Get the side of a box the player stands on when moving it in the given
+	 * direction, i.e. behind it when pushing and in front of it when pulling.
+	 * 
+	 * @param direction The direction the box is moved in
+	 * @return The direction from the box to the player
+	 */
+	protected abstract Move getPlayerSide(Move direction);
+
+	@Override public int getPush () {
+		return push;
 	}
 	
-	@Override public Set<Box> getBoxes() {
+	@Override public GameState replay (int push, int playerCell, Deque<Move> moves) {
+		if (push == Push.NONE) {
+			if (player != null) {
+				Deque<Move> walk = getPlayerPath(playerCell);
+				if (walk == null)
+					return null;
+				moves.addAll(walk);
+			}
+			return createState(new Player(board.getLocation(playerCell)), boxes, boxHash, Push.NONE);
+		}
+		
+		int from = Push.getCell(push);
+		Move direction = Push.getDirection(push);
+		Move side = getPlayerSide(direction);
+		Deque<Move> walk = getPlayerPath(board.getNeighbor(from, side));
+		if (walk == null)
+			return null;
+		moves.addAll(walk);
+		int to = from;
+		for (int i = 0; i < Push.getLength(push); i++) {
+			moves.addLast(direction);
+			to = board.getNeighbor(to, direction);
+		}
+		BitSet newBoxes = (BitSet) boxes.clone();
+		newBoxes.clear(from);
+		newBoxes.set(to);
+		long newBoxHash = boxHash ^ board.getBoxKey(from) ^ board.getBoxKey(to);
+		Player movedPlayer = new Player(board.getLocation(board.getNeighbor(to, side)));
+		return createState(movedPlayer, newBoxes, newBoxHash, push);
+	}
+	
+	@Override public BitSet getBoxCells() {
 		return boxes;
 	}
 	
+	@Override public long getHash() {
+		if (normalizedPlayerCell == UNKNOWN_CELL) {
+			long traceStart = Trace.start();
+			normalize();
+			Trace.end(Trace.Phase.HASHING, traceStart);
+		}
+		return hash;
+	}
+	
+	/**
+	 * Examines whether there is a box at the given {@link Location}.
+	 * 
+	 * @param l The location to examine
+	 * @return <code>true</code> if a box is placed at l
+	 */
+	public boolean hasBox(Location l) {
+		int cell = board.getCell(l);
+		return cell >= 0 && boxes.get(cell);
+	}
+	
 	@Override public Location getPlayerLocation() {
 		return player == null ? null : player.getLocation();
 	}
 	
-	@Override public GameState getPlayerMoveGameState(Location l) {
-		/*
-		 * Re-use the BFS by fabricating a fake box, next the Location l,
-		 * that we want to pull up to the Location l
-		 */
-		Box dummyBox = new Box(l.move(Move.DOWN));
-		Move dummyMove = Move.UP;
-		BoxMove dummy = new BoxMove(dummyBox, dummyMove);
-		List<BoxMove> dummyList = Collections.singletonList(dummy);
-		Deque<Move> movesToEnd = findBackwardsMovePathsBFS(dummyList).get(dummy);
-		if(movesToEnd == null) // can't find path to "start" from here
-			return null;
-		if (this instanceof ForwardsGameState) {
-			return new ForwardsGameState(board, new Player(l), boxes, movesToEnd);
-		} else {
-			return new BackwardsGameState(board, new Player(l), boxes, movesToEnd);
-		}
+	@Override public int getPlayerCell() {
+		return player == null ? -1 : board.getCell(player.getLocation());
 	}
 	
-	@Override public int getDistanceToGoal() {
-		int totalDistance = 0;
-		
-		Set<Goal> goals = board.getGoals();
-		for(Goal goal : goals) {
-			int shortestDistance = Integer.MAX_VALUE;
-			for(Box box : boxes) {
-				int distance = Location.distance(goal.getLocation(), box.getLocation());
-				if(distance < shortestDistance) {
-					shortestDistance = distance;
-				}
-			}
-			totalDistance += shortestDistance;
-		}
-		
-		return totalDistance;
+	@Override public Board getBoard() {
+		return board;
 	}
 	
-	@Override public int difference (GameState gameState) {
-		int totalDistance = 0;
-		for (Box myBox : boxes) {
-			int shortestDistance = Integer.MAX_VALUE;
-			for (Box otherBox : boxes) {
-				int distance = Location.distance(myBox.getLocation(), otherBox.getLocation());
-				if(distance < shortestDistance) {
-					shortestDistance = distance;
-				}
-			}
-			totalDistance += shortestDistance;
-		}
-		return totalDistance;
+	@Override public GameState getPlayerMoveGameState(Location l) {
+		if (getPlayerPath(board.getCell(l)) == null) // can't find path to "start" from here
+			return null;
+		return createState(new Player(l), boxes, boxHash, Push.NONE);
 	}
 	
-	@Override public int numObstacles() {
-		if (getPlayerLocation() == null)
-			return 0;
-		int totalObstacles = 0;
-		Location playerLocation = getPlayerLocation();
-		Set<Goal> goals = board.getGoals();
-		for (Goal goal : goals) {
-			int goalRow = goal.getLocation().getRow();
-			int goalCol = goal.getLocation().getCol();
-			int playerRow = playerLocation.getRow();
-			int playerCol = playerLocation.getCol();
-			int rowDirection = goalRow - playerRow  > 0 ? 1 : (goalRow - playerRow == 0 ? 0 : -1);
-			int colDirection = goalCol - playerCol > 0 ? 1 : (goalCol - playerCol == 0 ? 0 : -1);
-			while (playerRow != goalRow || playerCol != goalCol) {
-				playerRow += rowDirection;
-				playerCol += colDirection;
-				if (board.charAt(playerRow, playerCol) == WALL)
-					totalObstacles++;
-				if (playerRow == goalRow)
-					rowDirection = 0;
-				if (playerCol == goalCol)
-					colDirection = 0;
-			}
-		}
-		return totalObstacles;
+	/**
+	 * Find the shortest walk of the player to the given cell, without
+	 * moving any boxes.
+	 * 
+	 * @param target The cell index to walk to
+	 * @return The moves of the walk, or <code>null</code> if target can't be reached
+	 */
+	protected Deque<Move> getPlayerPath(int target) {
+		if (!isFreeForPlayer(target))
+			return null;
+		return explore(target).getPathTo(target);
+	}
+	
+	@Override public int getDistanceToGoal() {
+		return board.getMatchingHeuristic().getCost(boxes, push);
 	}
 	
 	/**
-	 * Examines whether all of the given {@link Location}'s are free from both
-	 * walls and boxes.
-	 * @param locations the Locations to examine
-	 * @return <code>true</code> if all the locations are free, <code>false</code> if any of them isn't
+	 * Examines whether the given cell is free from both walls and boxes.
+	 * @param cell the cell index to examine, -1 for a wall
+	 * @return <code>true</code> if the cell is free
 	 */
-	protected boolean isFreeForPlayer (Location... locations) {
-		for (Location loc : locations)
-			if (!board.isFree(loc) || boxes.contains(new Box(loc)))
-				return false;
-		return true;
+	protected boolean isFreeForPlayer (int cell) {
+		return cell >= 0 && !boxes.get(cell);
 	}
 	
 	protected boolean boxesAreDone () {
-		for(Box box : boxes) {
-			Location loc = box.getLocation();
-			if (!board.isGoal(loc))
+		for(int box = boxes.nextSetBit(0); box >= 0; box = boxes.nextSetBit(box + 1)) {
+			if (!board.isGoal(box))
 				return false;
 		}
 		return true;
 	}
 	
 	@Override public void markBoxAsFinished(Box box) {
-		movableBoxes.remove(box);
+		if (movableBoxes == boxes)
+			movableBoxes = (BitSet) boxes.clone();
+		movableBoxes.clear(board.getCell(box.getLocation()));
 	}
 	
-	protected Map<BoxMove, Deque<Move>> findBackwardsMovePathsBFS (List<BoxMove> possibleBoxMoves) {
-		Set<Location> possibleLocations = new HashSet<>();
-		for (BoxMove boxMove : possibleBoxMoves)
-			possibleLocations.add(boxMove.box.getLocation().move(boxMove.move));
-		Queue<Location> queue = new LinkedList<>();
-		queue.add(player.getLocation());
-		Map<Location, Move> visited = new HashMap<>();
-		visited.put(player.getLocation(), null);
-		
-		while (!queue.isEmpty()) {
-			Location location = queue.poll();
-			if (possibleLocations.isEmpty())
-				break;
-			possibleLocations.remove(location);
-			
-			for (Move move : Move.values()) {
-				Location newLocation = location.move(move);
-				if (visited.containsKey (newLocation) || !isFreeForPlayer(newLocation))
-					continue;
-				visited.put(newLocation, move);
-				queue.add(newLocation);
-			}
-		}
-		
-		//Reconstruct all paths
-		Map<BoxMove, Deque<Move>> pathsToPossibleBoxMoves = new HashMap<>();
-		for (BoxMove boxMove : possibleBoxMoves) {
-			Location currentLocation = boxMove.box.getLocation().move(boxMove.move);
-			if (!visited.containsKey(currentLocation)) // unreachable boxMove
-				continue;
-			// if we already are in the right location for this boxmove
-			// return empty list of moves
-			if (currentLocation.equals(player.getLocation())) {
-				pathsToPossibleBoxMoves.put(boxMove, new LinkedList<Move>());
-				continue;
-			}
-			Deque<Move> path = new LinkedList<>();
-			while (!currentLocation.equals(player.getLocation())) {
-				Move move = visited.get(currentLocation);
-				path.addFirst (move);
-				currentLocation = currentLocation.move(move.inverse());
-			}
-			pathsToPossibleBoxMoves.put(boxMove, path);
-		}
-		return pathsToPossibleBoxMoves;
+	/**
+	 * Run a BFS of the player on the {@link Reachability} of the current thread.
+	 * 
+	 * @param target A cell index to stop at once it's reached, or -1 to visit
+	 * every cell the player can reach
+	 * @return The result of the BFS, valid until the next BFS on this thread
+	 */
+	protected Reachability explore (int target) {
+		Reachability reachability = board.getReachability();
+		reachability.explore(boxes, board.getCell(player.getLocation()), target);
+		return reachability;
 	}
 
-	private Location findTopLeftmostCorner () {
+	private void normalize () {
+		int cell = player == null ? NO_PLAYER_CELL : findTopLeftmostCorner();
+		hash = boxHash ^ board.getPlayerKey(cell);
+		normalizedPlayerCell = cell;
+	}
+	
+	private int findTopLeftmostCorner () {
 		if (isDone ()) // special case to ensure run-to-goal state is not overwritten
-			return new Location(-1, -1);
-		Set<Location> visited = new HashSet<>();
-		Queue<Location> queue = new LinkedList<>();
-		queue.add (getPlayerLocation());
-		visited.add (getPlayerLocation());
-		Location topLeft = getPlayerLocation();
-		while (!queue.isEmpty()) {
-			Location current = queue.poll();
-			// set topLeftmostCorner, rows having priority over columns
-			if (current.getRow() < topLeft.getRow())
-				topLeft = current;
-			else if (current.getRow() == topLeft.getRow() &&
-					 current.getCol() < topLeft.getCol())
-				topLeft = current;
-			
-			for (Move move : Move.values()) {
-				Location neighbor = current.move(move);
-				if (isFreeForPlayer(neighbor) && !visited.contains(neighbor)) {
-					queue.add(neighbor);
-					visited.add(neighbor);
-				}
-			}
-		}
-		return topLeft;
+			return FINISHED_CELL;
+		return explore(-1).getTopLeftCell();
 	}
 	
 	@Override public int hashCode() {
-		int hashCode = 0;
-		if(topLeftmostCorner != null) {
-			hashCode += topLeftmostCorner.hashCode();
-		}
-		return hashCode + 31*boxes.hashCode();
+		long hash = getHash();
+		return (int) (hash ^ (hash >>> 32));
 	}
 	
 	@Override public boolean equals(Object obj) {
@@ -254,12 +228,9 @@ public abstract class AbstractGameState implements GameState {
 		if (!(obj instanceof AbstractGameState))
 			return false;
 		AbstractGameState g = (AbstractGameState) obj;
-		if(topLeftmostCorner == null) {
-			if(g.topLeftmostCorner != null) {
-				return false;
-			}
-		}
-		return topLeftmostCorner.equals(g.topLeftmostCorner) &&
+		// only compare the full states when the hashes collide
+		return getHash() == g.getHash() &&
+				normalizedPlayerCell == g.normalizedPlayerCell &&
 				boxes.equals(g.boxes);
 	}
 }
@@ -1,12 +1,9 @@
 import java.util.ArrayList;
+import java.util.BitSet;
 import java.util.Arrays;
 import java.util.Collections;
-import java.util.Deque;
 import java.util.HashSet;
-import java.util.LinkedList;
 import java.util.List;
-import java.util.Map;
-import java.util.Map.Entry;
 import java.util.Set;
 
 /**
@@ -50,70 +47,100 @@ public class BackwardsGameState extends AbstractGameState {
 	public static final char BOX = '.';
 	public static final char BOX_ON_GOAL = '*';
 
-	BackwardsGameState (Board board, Player player, Set<Box> boxes) {
-		this (board, player, boxes, new LinkedList<Move>());
+	BackwardsGameState (Board board, Player player, BitSet boxes) {
+		super(board, player, boxes);
 	}
 
-	BackwardsGameState(Board board, Player player, Set<Box> boxes, Move lastMove) {
-		super(board, player, boxes, lastMove);
+	BackwardsGameState(Board board, Player player, BitSet boxes, long boxHash, int push) {
+		super(board, player, boxes, boxHash, push);
 	}
-
-	BackwardsGameState(Board board, Player player, Set<Box> boxes, Deque<Move> movesToHere) {
-		super(board, player, boxes, movesToHere);
+	
+	@Override protected AbstractGameState createState(Player player, BitSet boxes, long boxHash, int push) {
+		return new BackwardsGameState(board, player, boxes, boxHash, push);
+	}
+	
+	@Override protected Move getPlayerSide(Move direction) {
+		return direction; // the player pulls from in front
 	}
 
 	@Override public List<GameState> getNextBoxStates () {
+		long traceStart = Trace.start();
+		List<GameState> nextStates = findNextBoxStates();
+		Trace.end(Trace.Phase.SUCCESSORS, traceStart);
+		return nextStates;
+	}
+	
+	private List<GameState> findNextBoxStates () {
+		if (!board.isSolvable())
+			return new ArrayList<>();
 		if (boxesAreDone())
 			return runToGoalGameStates ();
+		if (player == null)
+			return createInitialStates ();
 		List<GameState> nextStates = new ArrayList<>();
 		
-		List<BoxMove> possibleBoxMoves = new ArrayList<>();
-		for (Box box : boxes) {
-			List<Move> possibleMoves = getPossibleMoves(box);
-			for (Move move : possibleMoves)
-				possibleBoxMoves.add (new BoxMove(box, move));
+		/*
+		 * Find the reachable pulls first, so that hashing or replaying the
+		 * new states can't overwrite the shared Reachability meanwhile.
+		 */
+		Reachability reachability = explore(-1);
+		int[] pulls = new int[boxes.cardinality() * MOVES.length];
+		int numberOfPulls = 0;
+		for (int cell = boxes.nextSetBit(0); cell >= 0; cell = boxes.nextSetBit(cell + 1)) {
+			int possibleMoves = getPossibleMoves(cell);
+			for (Move move : MOVES) {
+				if ((possibleMoves & (1 << move.ordinal())) == 0
+						|| !reachability.isReachable(board.getNeighbor(cell, move)))
+					continue;
+				if (board.isDeadlockCell(board.getNeighbor(cell, move)))
+					board.getMetrics().increment(SearchMetrics.Counter.SIMPLE_DEADLOCKS);
+				else
+					pulls[numberOfPulls++] = Push.encode(cell, move, 1);
+			}
 		}
 		
-		if (player == null)
-			return createInitialStates (possibleBoxMoves);
-		
-		Map<BoxMove, Deque<Move>> movePaths = findBackwardsMovePathsBFS (possibleBoxMoves);
-		for (Entry<BoxMove, Deque<Move>> pathEntry : movePaths.entrySet()) {
-			BoxMove boxMove = pathEntry.getKey();
-			Deque<Move> moves = pathEntry.getValue();
-			
-			Player playerBeforeBoxMove = new Player(boxMove.box.getLocation().move(boxMove.move));
-			Player movedPlayer = playerBeforeBoxMove.move(boxMove.move);
-			Box movedBox = boxMove.box.move(boxMove.move);
-			
-			Set<Box> newBoxes = new HashSet<>(boxes);
-			newBoxes.remove(boxMove.box);
-			moves.addLast (boxMove.move);
-			if (board.isStartOfTunnel(movedBox.getLocation(), boxMove.move)) {
-				Location start = movedBox.getLocation();
-				List<Move> tunnelPath = start.getLinearPathTo(board.getEndOfTunnel(start, boxMove.move));
-				for (Move tunnelMove : tunnelPath) {
-					if (boxes.contains(new Box(movedPlayer.move(tunnelMove).getLocation())))
+		for (int i = 0; i < numberOfPulls; i++) {
+			int cell = Push.getCell(pulls[i]);
+			Move move = Push.getDirection(pulls[i]);
+			int playerCell = board.getNeighbor(cell, move);
+			int movedBoxCell = playerCell;
+			int movedPlayerCell = board.getNeighbor(playerCell, move);
+			int pullLength = 1;
+			int tunnelEnd = board.getTunnelEnd(movedBoxCell, move);
+			if (tunnelEnd >= 0) {
+				while (movedBoxCell != tunnelEnd) {
+					int next = board.getNeighbor(movedPlayerCell, move);
+					if (next < 0 || boxes.get(next))
 						break;
-					movedPlayer = movedPlayer.move(tunnelMove);
-					movedBox = movedBox.move(tunnelMove);
-					moves.addLast (tunnelMove);
+					movedBoxCell = movedPlayerCell;
+					movedPlayerCell = next;
+					pullLength++;
 				}
 			}
-			newBoxes.add(movedBox);
-			BackwardsGameState state = new BackwardsGameState(board, movedPlayer, newBoxes, moves);
-			nextStates.add (state);
+			
+			BitSet newBoxes = (BitSet) boxes.clone();
+			newBoxes.clear(cell);
+			newBoxes.set(movedBoxCell);
+			long newBoxHash = boxHash ^ board.getBoxKey(cell) ^ board.getBoxKey(movedBoxCell);
+			int push = Push.encode(cell, move, pullLength);
+			Player movedPlayer = new Player(board.getLocation(movedPlayerCell));
+			nextStates.add (new BackwardsGameState(board, movedPlayer, newBoxes, newBoxHash, push));
 		}
 		return nextStates;
 	}
 
-	private List<GameState> createInitialStates(List<BoxMove> possibleBoxMoves) {
+	private List<GameState> createInitialStates() {
 		List<GameState> initialStates = new ArrayList<>();
-		for (BoxMove boxMove : possibleBoxMoves) {
-			Player initialPlayer =
-					new Player(boxMove.box.getLocation().move(boxMove.move));
-			BackwardsGameState initialState = new BackwardsGameState(board, initialPlayer, boxes);
-			initialStates.add(initialState);
+		for (int cell = boxes.nextSetBit(0); cell >= 0; cell = boxes.nextSetBit(cell + 1)) {
+			int possibleMoves = getPossibleMoves(cell);
+			for (Move move : MOVES) {
+				if ((possibleMoves & (1 << move.ordinal())) == 0
+						|| board.isDeadlockCell(board.getNeighbor(cell, move)))
+					continue;
+				Player initialPlayer = new Player(board.getLocation(board.getNeighbor(cell, move)));
+				BackwardsGameState initialState = new BackwardsGameState(board, initialPlayer, boxes, boxHash, Push.NONE);
+				initialStates.add(initialState);
+			}
 		}
 		return initialStates;
 	}
@@ -130,24 +157,18 @@ public class BackwardsGameState extends AbstractGameState {
 		return Collections.singletonList(endState);
 	}
 
-	private List<Move> getPossibleMoves (Movable<?> m) {
-		List<Move> possibleMoves = new ArrayList<>();
-		Location oneUp = m.getLocation().move(Move.UP);
-		Location twoUp = oneUp.move(Move.UP);
-		Location oneRight = m.getLocation().move(Move.RIGHT);
-		Location twoRight = oneRight.move(Move.RIGHT);
-		Location oneDown = m.getLocation().move(Move.DOWN);
-		Location twoDown = oneDown.move(Move.DOWN);
-		Location oneLeft = m.getLocation().move(Move.LEFT);
-		Location twoLeft = oneLeft.move(Move.LEFT);
-		if (isFreeForPlayer(oneUp, twoUp))
-			possibleMoves.add(Move.UP);
-		if (isFreeForPlayer(oneRight, twoRight))
-			possibleMoves.add(Move.RIGHT);
-		if (isFreeForPlayer(oneDown, twoDown))
-			possibleMoves.add(Move.DOWN);
-		if (isFreeForPlayer(oneLeft, twoLeft))
-			possibleMoves.add(Move.LEFT);
+	/*
+	 * The directions the box on the given cell can be pulled in, ignoring
+	 * whether the player can reach it or the box can get to a goal from
+	 * where it ends up, as a bitmask of move ordinals.
+	 */
+	private int getPossibleMoves (int cell) {
+		int possibleMoves = 0;
+		for (Move move : MOVES) {
+			int oneAway = board.getNeighbor(cell, move);
+			if (isFreeForPlayer(oneAway) && isFreeForPlayer(board.getNeighbor(oneAway, move)))
+				possibleMoves |= 1 << move.ordinal();
+		}
 		return possibleMoves;
 	}
 	
@@ -185,7 +206,14 @@ public class BackwardsGameState extends AbstractGameState {
 	 */
 	public BackwardsGameState subGameState(int x, int y, int width, int height) {
 		Board subBoard = board.subBoard(x, y, width, height);
-		return new BackwardsGameState(subBoard, player, boxes);
+		Set<Box> subBoxes = new HashSet<>();
+		for (int cell = boxes.nextSetBit(0); cell >= 0; cell = boxes.nextSetBit(cell + 1)) {
+			Location l = board.getLocation(cell);
+			Location subLocation = new Location(l.getCol() - x, l.getRow() - y);
+			if (subBoard.getCell(subLocation) >= 0)
+				subBoxes.add(new Box(subLocation));
+		}
+		return new BackwardsGameState(subBoard, player, subBoard.toCells(subBoxes));
 	}
 
 	public static BackwardsGameState calculateBoard(List<String> boardStrings) {
@@ -194,7 +222,10 @@ public class BackwardsGameState extends AbstractGameState {
 		for (String s : boardStrings)
 			width = Math.max(width, s.length());
 		char[][] board = new char[height][width];
-		return fillBoard(board, boardStrings);
+		long traceStart = Trace.start();
+		BackwardsGameState state = fillBoard(board, boardStrings);
+		Trace.end(Trace.Phase.CALCULATE_BOARD, traceStart);
+		return state;
 	}
 
 	private static BackwardsGameState fillBoard(char[][] board, List<String> boardStrings) {
@@ -236,13 +267,25 @@ public class BackwardsGameState extends AbstractGameState {
 				}
 			}
 		}
-		return new BackwardsGameState(new Board(board, goals, GOAL), null, boxes);
+		/*
+		 * Wall off the squares the player can never reach, so that this board
+		 * numbers its cells exactly like the forwards board of the same map.
+		 */
+		for (int row = 0; row < board.length; row++)
+			for (int col = 0; col < board[row].length; col++)
+				if (board[row][col] == PLAYER)
+					board = ForwardsGameState.fillUnreachableLocationsWithWalls(board, new Location(col, row));
+		boolean isSolvable = ForwardsGameState.removeWalledInBoxes(board, boxes, goals);
+		Board gameBoard = new Board(board, goals, GOAL, true);
+		if (!isSolvable)
+			gameBoard.markUnsolvable();
+		return new BackwardsGameState(gameBoard, null, gameBoard.toCells(boxes));
 	}
 	
 	@Override public String toString() {
 		char[][] matrix = board.getBoardMatrix ();
-		for (Box box : boxes) {
-			Location l = box.getLocation();
+		for (int box = boxes.nextSetBit(0); box >= 0; box = boxes.nextSetBit(box + 1)) {
+			Location l = board.getLocation(box);
 			char c = board.getCharForLocation(l);
 			if (c == GOAL)
 				matrix[l.getRow()][l.getCol()] = BOX_ON_GOAL;
@@ -0,0 +1,167 @@
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Solves many maps in one JVM, on a fixed number of worker threads, each
+ * map within a time budget of its own.
+ * <p>
+ * Run with
+ * <code>java BatchSolver [--workers n] [--budget ms] [--policy p] [--trace file] maps...</code>,
+ * where every argument after the options is a map file or a directory of
+ * map files. A tab separated result line is printed for every map, in the
+ * order they were given: the file, <code>solved</code>,
+ * <code>unsolved</code> or <code>failed</code>, the milliseconds taken, the
+ * number of expanded states and the solution or error. The last line sums
+ * up the batch.
+ */
+public class BatchSolver {
+
+	private static final long DEFAULT_BUDGET_MILLIS = 10000;
+
+	private final int numberOfWorkers;
+	private final long budgetMillis;
+	private final SearchPolicy policy;
+
+	public BatchSolver(int numberOfWorkers, long budgetMillis, SearchPolicy policy) {
+		if (numberOfWorkers < 1)
+			throw new IllegalArgumentException("Need at least one worker, got " + numberOfWorkers);
+		this.numberOfWorkers = numberOfWorkers;
+		this.budgetMillis = budgetMillis;
+		this.policy = policy;
+	}
+
+	public static void main(String[] args) throws IOException, InterruptedException {
+		int numberOfWorkers = Runtime.getRuntime().availableProcessors();
+		long budgetMillis = DEFAULT_BUDGET_MILLIS;
+		SearchPolicy policy = SearchPolicy.DEFAULT;
+		int i = 0;
+		for (; i + 1 < args.length && args[i].startsWith("--"); i += 2) {
+			if (args[i].equals("--workers"))
+				numberOfWorkers = Integer.parseInt(args[i + 1]);
+			else if (args[i].equals("--budget"))
+				budgetMillis = Long.parseLong(args[i + 1]);
+			else if (args[i].equals("--policy"))
+				policy = SearchPolicy.parse(args[i + 1]);
+			else if (args[i].equals("--trace"))
+				Trace.open(args[i + 1]);
+			else
+				throw new IllegalArgumentException("Unknown option: " + args[i]);
+		}
+		List<Path> maps = new ArrayList<>();
+		for (; i < args.length; i++)
+			addMaps(Paths.get(args[i]), maps);
+		if (maps.isEmpty()) {
+			System.err.println("usage: BatchSolver [--workers n] [--budget ms] [--policy p] [--trace file] maps...");
+			System.exit(2);
+		}
+		new BatchSolver(numberOfWorkers, budgetMillis, policy).solve(maps);
+		Trace.close();
+	}
+
+	private static void addMaps(Path path, List<Path> maps) throws IOException {
+		if (!Files.isDirectory(path)) {
+			maps.add(path);
+			return;
+		}
+		List<Path> files = new ArrayList<>();
+		try (DirectoryStream<Path> directory = Files.newDirectoryStream(path)) {
+			for (Path file : directory)
+				if (Files.isRegularFile(file))
+					files.add(file);
+		}
+		Collections.sort(files);
+		maps.addAll(files);
+	}
+
+	/**
+	 * Solve the maps and print a result line for each of them.
+	 *
+	 * @param maps The map files
+	 * @throws InterruptedException If interrupted while waiting for a map
+	 */
+	public void solve(List<Path> maps) throws InterruptedException {
+		long start = System.nanoTime();
+		ExecutorService workers = Executors.newFixedThreadPool(numberOfWorkers);
+		List<Future<Result>> results = new ArrayList<>();
+		for (final Path map : maps) {
+			results.add(workers.submit(new Callable<Result>() {
+				@Override public Result call() {
+					return solve(map);
+				}
+			}));
+		}
+		workers.shutdown();
+
+		int solved = 0;
+		for (Future<Result> future : results) {
+			Result result;
+			try {
+				result = future.get();
+			} catch (ExecutionException e) {
+				throw new IllegalStateException("A map wasn't handled", e.getCause());
+			}
+			if (result.status.equals("solved"))
+				solved++;
+			System.out.println(result);
+		}
+		long millis = (System.nanoTime() - start) / 1000000;
+		System.out.println("solved " + solved + " of " + maps.size() + " in " + millis + " ms");
+	}
+
+	private Result solve(Path map) {
+		long start = System.nanoTime();
+		Trace.beginMap(map.toString());
+		GameState gs = null;
+		try {
+			List<String> boardStrings = Files.readAllLines(map, StandardCharsets.UTF_8);
+			gs = BackwardsGameState.calculateBoard(boardStrings);
+			// the searches running at the same time share the memory
+			long memoryBudget = Runtime.getRuntime().maxMemory()
+					/ AStarAlgorithm.DEFAULT_MEMORY_FRACTION / numberOfWorkers;
+			AStarAlgorithm aStar = new AStarAlgorithm(gs, memoryBudget, policy);
+			aStar.runUntil(start + budgetMillis * 1000000L);
+			String status = aStar.hasSolution() ? "solved" : "unsolved";
+			String solution = aStar.hasSolution() ? aStar.getSolution().toString() : aStar.getStatistics();
+			return new Result(map, status, start, aStar.getExpandedStates(), solution);
+		} catch (IOException | RuntimeException | OutOfMemoryError e) {
+			return new Result(map, "failed", start, 0, e.toString());
+		} finally {
+			// the worker goes on with other maps
+			if (gs != null)
+				gs.getBoard().releaseThreadBuffers();
+			Trace.endMap();
+		}
+	}
+
+	private static final class Result {
+		final Path map;
+		final String status;
+		final long millis;
+		final int expandedStates;
+		final String details;
+
+		Result(Path map, String status, long startNanos, int expandedStates, String details) {
+			this.map = map;
+			this.status = status;
+			millis = (System.nanoTime() - startNanos) / 1000000;
+			this.expandedStates = expandedStates;
+			this.details = details;
+		}
+
+		@Override public String toString() {
+			return map + "\t" + status + "\t" + millis + "\t" + expandedStates + "\t" + details;
+		}
+	}
+}
@@ -0,0 +1,130 @@
+import java.io.PrintStream;
+import java.util.Deque;
+
+/**
+ * A search from the start forwards and from the goal backwards at the same
+ * time, which stops when the two meet.
+ * <p>
+ * Both searches key their states on the same canonical
+ * {@link GameState#getHash() hash} of the boxes and the area the player can
+ * walk in, so a state one search expands is looked up in the
+ * {@link TranspositionTable} of the other in constant time. Every step
+ * expands a state of the search with the fewer open states, which keeps
+ * the two frontiers about the same size.
+ * <p>
+ * The solution is the path of the forwards search to the meeting state,
+ * followed by the path of the backwards search from there, turned around
+ * by {@link BackwardSolution#getForwardSolution()}.
+ */
+public class BidirectionalSearch implements Search {
+
+	private final AStarAlgorithm forwards;
+	private final AStarAlgorithm backwards;
+	private boolean isDone = false;
+	private int steps = 0;
+
+	// where to write snapshots of the metrics of both sides to, and how often
+	private PrintStream metricsOut;
+	private long metricsIntervalNanos;
+	private long nextMetricsNanos;
+
+	/**
+	 * Create a search between two states of the same map.
+	 *
+	 * @param start The start, a {@link ForwardsGameState}
+	 * @param goal The goal, a {@link BackwardsGameState}
+	 */
+	public BidirectionalSearch(GameState start, GameState goal) {
+		this(start, goal, SearchPolicy.DEFAULT);
+	}
+
+	/**
+	 * Create a search between two states of the same map, whose sides order
+	 * their states by the given policy. An anytime policy doesn't go on
+	 * searching after the two sides meet.
+	 *
+	 * @param start The start, a {@link ForwardsGameState}
+	 * @param goal The goal, a {@link BackwardsGameState}
+	 * @param policy The policy of both sides
+	 */
+	public BidirectionalSearch(GameState start, GameState goal, SearchPolicy policy) {
+		forwards = new AStarAlgorithm(start, policy);
+		backwards = new AStarAlgorithm(goal, policy);
+		forwards.setOtherAStar(backwards);
+		backwards.setOtherAStar(forwards);
+	}
+
+	/**
+	 * Expand a state of the search with the smaller frontier.
+	 *
+	 * @return <code>true</code> if the searches have met, or either of them
+	 * ran out of states, so that there is no solution
+	 */
+	@Override public boolean nextStep() {
+		if (!isDone) {
+			// only look at the clock every so often
+			if (metricsOut != null && (steps++ & 0xff) == 0
+					&& System.nanoTime() - nextMetricsNanos >= 0) {
+				metricsOut.println(getMetrics().toJson());
+				nextMetricsNanos += metricsIntervalNanos;
+			}
+			AStarAlgorithm side = forwards.openSet.size() <= backwards.openSet.size() ? forwards : backwards;
+			isDone = side.nextStep();
+		}
+		return isDone;
+	}
+
+	@Override public boolean runUntil(long deadlineNanos) {
+		while (System.nanoTime() - deadlineNanos < 0)
+			if (nextStep())
+				return true;
+		return false;
+	}
+
+	@Override public boolean hasSolution() {
+		return forwards.hasSolution() || backwards.hasSolution();
+	}
+
+	@Override public String getStatistics() {
+		return "forwards " + forwards.getStatistics() + ", backwards " + backwards.getStatistics();
+	}
+
+	/**
+	 * Write a snapshot of the {@link SearchMetrics} of both sides as a JSON
+	 * line every so often while searching, see {@link #getMetrics()}.
+	 *
+	 * @param out Where to write the snapshots
+	 * @param intervalMillis The time between snapshots
+	 */
+	public void recordMetrics(PrintStream out, long intervalMillis) {
+		metricsOut = out;
+		metricsIntervalNanos = intervalMillis * 1000000L;
+		nextMetricsNanos = System.nanoTime();
+	}
+
+	/**
+	 * Get the metrics of the forwards and the backwards search added up. Only
+	 * the forwards search counts PI-corrals and deadlock patterns.
+	 *
+	 * @return The sums of the counters of both sides
+	 */
+	public SearchMetrics.Snapshot getMetrics() {
+		return forwards.getMetrics().plus(backwards.getMetrics());
+	}
+
+	/**
+	 * Get the moves from the start to the goal.
+	 *
+	 * @return The solution, which is empty if the search found none
+	 */
+	@Override public Solution getSolution() {
+		Solution solution = new ForwardSolution();
+		if (!hasSolution())
+			return solution;
+		for (Solution part : new Solution[] {
+				forwards.getSolution(), backwards.getSolution().getForwardSolution() })
+			for (Deque<Move> moves : part.getPath())
+				solution.append(moves);
+		return solution;
+	}
+}
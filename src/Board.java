@@ -1,39 +1,424 @@
 import java.util.ArrayList;
 import java.util.Arrays;
-import java.util.HashMap;
+import java.util.BitSet;
+import java.util.Collection;
 import java.util.HashSet;
 import java.util.List;
-import java.util.Map;
+import java.util.Random;
 import java.util.Set;
 
 public class Board {
+	/**
+	 * The goal distance of a cell from which a box can't reach the goal.
+	 */
+	public static final int UNREACHABLE = Integer.MAX_VALUE;
+	
 	private final char[][] board;
 	private final Set<Goal> goals;
 	private final char goalChar;
-	private Set<Location> deadlocks;
-	private Map<TunnelStart, Location> tunnels;
 	private List<ForwardsGameState.GoalArea> goalAreas;
+	// false if a box can never get to a goal, so that no search takes a step
+	private boolean isSolvable = true;
+	
+	// dense numbering of the free squares, used to encode states compactly
+	private final int[][] cellIndices;
+	private final Location[] cellLocations;
+	/*
+	 * Per cell lookup tables, so that moves can be generated without
+	 * creating Locations. Tables indexed by direction use
+	 * cell * DIRECTIONS + move ordinal. A wall has no cell, so the cell
+	 * numbering doubles as the floor bitmap.
+	 */
+	private static final Move[] MOVES = Move.values();
+	private static final int DIRECTIONS = MOVES.length;
+	private final int[] neighbors;
+	private final int[] tunnelEnds;
+	private final BitSet goalCells;
+	private final BitSet deadlockCells;
+	/*
+	 * The minimum number of box moves from every cell to every goal,
+	 * indexed by cell and goal number. Goals are numbered by cell.
+	 */
+	private final boolean boxesArePulled;
+	private final int[] goalCellsByNumber;
+	private final int[][] goalDistances;
+	/*
+	 * Every thread searching this board gets its own BFS buffers. They refer
+	 * to the board, so a thread keeps the board alive until it releases
+	 * them, see releaseThreadBuffers.
+	 */
+	private final ThreadLocal<Reachability> reachability = new ThreadLocal<Reachability>() {
+		@Override protected Reachability initialValue() {
+			return new Reachability(Board.this);
+		}
+	};
+	private final ThreadLocal<MatchingHeuristic> matchingHeuristic = new ThreadLocal<MatchingHeuristic>() {
+		@Override protected MatchingHeuristic initialValue() {
+			return new MatchingHeuristic(Board.this);
+		}
+	};
+	private final DeadlockPatterns deadlockPatterns;
+	private final SearchMetrics metrics;
+	
+	// random keys per cell for the Zobrist hashing of states
+	private static final long ZOBRIST_SEED = 0x5DEECE66DL;
+	private final long[] boxKeys;
+	private final long[] playerKeys;
 	
 	public Board(char[][] board, Set<Goal> goals, char goalChar) {
+		this(board, goals, goalChar, false);
+	}
+	
+	/**
+	 * Create a board.
+	 * 
+	 * @param board The squares of the board
+	 * @param goals The goals of the board
+	 * @param goalChar The character of a goal square
+	 * @param boxesArePulled <code>true</code> if the boxes are pulled rather
+	 * than pushed, as in a backwards search
+	 */
+	public Board(char[][] board, Set<Goal> goals, char goalChar, boolean boxesArePulled) {
 		this.board = board;
+		this.boxesArePulled = boxesArePulled;
 		this.goals = goals;
 		this.goalChar = goalChar;
-		deadlocks = new HashSet<>();
-		tunnels = new HashMap<>();
 		goalAreas = new ArrayList<>();
+		cellIndices = new int[board.length][];
+		cellLocations = numberCells();
+		neighbors = new int[cellLocations.length * DIRECTIONS];
+		tunnelEnds = new int[cellLocations.length * DIRECTIONS];
+		goalCells = new BitSet(cellLocations.length);
+		deadlockCells = new BitSet(cellLocations.length);
+		for (int cell = 0; cell < cellLocations.length; cell++) {
+			for (Move move : MOVES)
+				neighbors[cell * DIRECTIONS + move.ordinal()] = getCell(cellLocations[cell].move(move));
+			if (isGoal(cellLocations[cell]))
+				goalCells.set(cell);
+		}
+		Arrays.fill(tunnelEnds, -1);
+		Random random = new Random(ZOBRIST_SEED);
+		boxKeys = new long[cellLocations.length];
+		playerKeys = new long[cellLocations.length];
+		for (int cell = 0; cell < cellLocations.length; cell++) {
+			boxKeys[cell] = random.nextLong();
+			playerKeys[cell] = random.nextLong();
+		}
+		goalCellsByNumber = new int[goalCells.cardinality()];
+		for (int goal = 0, cell = goalCells.nextSetBit(0); cell >= 0; goal++, cell = goalCells.nextSetBit(cell + 1))
+			goalCellsByNumber[goal] = cell;
+		goalDistances = new int[cellLocations.length][goalCellsByNumber.length];
+		long traceStart = Trace.start();
+		int[] sideAreas = calculateSideAreas();
+		for (int goal = 0; goal < goalCellsByNumber.length; goal++)
+			calculateGoalDistances(goal, sideAreas);
+		findDeadlocks();
+		Trace.end(Trace.Phase.GOAL_DISTANCES, traceStart);
+		deadlockPatterns = new DeadlockPatterns(this);
+		metrics = new SearchMetrics();
 	}
 	
-	public Set<Goal> getGoals() {
-		return goals;
+	/*
+	 * A board like base, with a single one of its goals and more walls, see
+	 * withGoalAndWalls. The walls keep their cell numbers, but lose their
+	 * neighbors.
+	 */
+	private Board(Board base, Goal goal, Collection<Location> walls) {
+		board = base.getBoardMatrix();
+		boxesArePulled = base.boxesArePulled;
+		goals = new HashSet<>();
+		goals.add(goal);
+		goalChar = base.goalChar;
+		goalAreas = new ArrayList<>();
+		cellIndices = base.cellIndices.clone();
+		cellLocations = base.cellLocations;
+		neighbors = base.neighbors.clone();
+		tunnelEnds = base.tunnelEnds;
+		boxKeys = base.boxKeys;
+		playerKeys = base.playerKeys;
+		for (Location wall : walls) {
+			int cell = base.getCell(wall);
+			if (cell < 0)
+				continue;
+			board[wall.getRow()][wall.getCol()] = GameState.WALL;
+			if (cellIndices[wall.getRow()] == base.cellIndices[wall.getRow()])
+				cellIndices[wall.getRow()] = base.cellIndices[wall.getRow()].clone();
+			cellIndices[wall.getRow()][wall.getCol()] = -1;
+			for (Move move : MOVES) {
+				int neighbor = base.getNeighbor(cell, move);
+				neighbors[cell * DIRECTIONS + move.ordinal()] = -1;
+				if (neighbor >= 0)
+					neighbors[neighbor * DIRECTIONS + move.inverse().ordinal()] = -1;
+			}
+		}
+		int goalCell = base.getCell(goal.getLocation());
+		int baseGoal = Arrays.binarySearch(base.goalCellsByNumber, goalCell);
+		if (baseGoal < 0)
+			throw new IllegalArgumentException(goal + " isn't a goal of the board");
+		for (int cell = base.goalCells.nextSetBit(0); cell >= 0; cell = base.goalCells.nextSetBit(cell + 1)) {
+			Location l = cellLocations[cell];
+			if (cell != goalCell && board[l.getRow()][l.getCol()] == goalChar)
+				board[l.getRow()][l.getCol()] = GameState.FREE_SPACE;
+		}
+		goalCells = new BitSet(cellLocations.length);
+		goalCells.set(goalCell);
+		goalCellsByNumber = new int[] { goalCell };
+		goalDistances = new int[cellLocations.length][1];
+		for (int cell = 0; cell < cellLocations.length; cell++)
+			goalDistances[cell][0] = base.goalDistances[cell][baseGoal];
+		deadlockCells = new BitSet(cellLocations.length);
+		findDeadlocks();
+		deadlockPatterns = new DeadlockPatterns(this);
+		metrics = base.metrics;
+	}
+	
+	/**
+	 * Create a board like this one, but with only one of its goals and with
+	 * some of its free squares turned into walls, for the many small
+	 * searches of a {@link ForwardsGameState.GoalArea}. The new board keeps
+	 * the cell numbering, Zobrist keys and goal distances of this one rather
+	 * than working them out again, which makes it much cheaper than a new
+	 * board. The goal distances ignore the new walls, so they may be too low
+	 * and fewer cells are deadlocks; a search on the new board only prunes
+	 * less for it. The two boards share their metrics.
+	 * 
+	 * @param goal The only goal of the new board, one of the goals of this one
+	 * @param walls The squares that are walls on the new board
+	 * @return The new board
+	 */
+	public Board withGoalAndWalls(Goal goal, Collection<Location> walls) {
+		return new Board(this, goal, walls);
+	}
+	
+	/*
+	 * A cell is a deadlock exactly if a box on it can't get to any goal, even
+	 * without other boxes in the way. A box must never be moved to one.
+	 */
+	private void findDeadlocks() {
+		for (int cell = 0; cell < cellLocations.length; cell++)
+			if (getNearestGoalDistance(cell) == UNREACHABLE)
+				deadlockCells.set(cell);
+	}
+	
+	/*
+	 * For every cell and direction, a number identifying the area the player
+	 * can walk in from the neighbor in that direction if a box stood on the
+	 * cell, or -1 if the neighbor is a wall. Two sides of a box have the same
+	 * number if the player can walk around the box from one to the other.
+	 */
+	private int[] calculateSideAreas() {
+		int[] sideAreas = new int[cellLocations.length * DIRECTIONS];
+		int[] visited = new int[cellLocations.length];
+		int[] queue = new int[cellLocations.length];
+		int search = 0;
+		Arrays.fill(sideAreas, -1);
+		for (int box = 0; box < cellLocations.length; box++) {
+			for (Move side : MOVES) {
+				int start = getNeighbor(box, side);
+				if (start < 0 || sideAreas[box * DIRECTIONS + side.ordinal()] >= 0)
+					continue; // a wall, or walked to from an earlier side
+				search++;
+				visited[box] = search;
+				visited[start] = search;
+				int head = 0;
+				int tail = 0;
+				queue[tail++] = start;
+				while (head < tail) {
+					int cell = queue[head++];
+					for (Move move : MOVES) {
+						int neighbor = getNeighbor(cell, move);
+						if (neighbor >= 0 && visited[neighbor] != search) {
+							visited[neighbor] = search;
+							queue[tail++] = neighbor;
+						}
+					}
+				}
+				for (Move other : MOVES) {
+					int neighbor = getNeighbor(box, other);
+					if (neighbor >= 0 && visited[neighbor] == search)
+						sideAreas[box * DIRECTIONS + other.ordinal()] = side.ordinal();
+				}
+			}
+		}
+		return sideAreas;
+	}
+	
+	/*
+	 * A BFS backwards from a goal over the positions of a single box and the
+	 * side of it the player is on, on a board without other boxes. A box can
+	 * get to the goal from a cell exactly if the BFS reaches some side of it.
+	 */
+	private void calculateGoalDistances(int goal, int[] sideAreas) {
+		int[] distances = new int[cellLocations.length * DIRECTIONS];
+		Arrays.fill(distances, UNREACHABLE);
+		int[] queue = new int[distances.length];
+		int head = 0;
+		int tail = 0;
+		int goalCell = goalCellsByNumber[goal];
+		for (Move side : MOVES) {
+			if (getNeighbor(goalCell, side) >= 0) {
+				distances[goalCell * DIRECTIONS + side.ordinal()] = 0;
+				queue[tail++] = goalCell * DIRECTIONS + side.ordinal();
+			}
+		}
+		while (head < tail) {
+			int state = queue[head++];
+			int cell = state / DIRECTIONS;
+			Move side = MOVES[state % DIRECTIONS];
+			/*
+			 * The player is on this side after the last move, so a pushed box
+			 * came from this side and a pulled one from the opposite side.
+			 */
+			int previous = getNeighbor(cell, boxesArePulled ? side.inverse() : side);
+			if (previous < 0 || getNeighbor(previous, side) < 0)
+				continue;
+			int area = sideAreas[previous * DIRECTIONS + side.ordinal()];
+			for (Move other : MOVES) {
+				int previousState = previous * DIRECTIONS + other.ordinal();
+				// the player walked around the box to the side it moved it from
+				if (sideAreas[previousState] != area || distances[previousState] != UNREACHABLE)
+					continue;
+				distances[previousState] = distances[state] + 1;
+				queue[tail++] = previousState;
+			}
+		}
+		for (int cell = 0; cell < cellLocations.length; cell++) {
+			int distance = UNREACHABLE;
+			for (int side = 0; side < DIRECTIONS; side++)
+				distance = Math.min(distance, distances[cell * DIRECTIONS + side]);
+			goalDistances[cell][goal] = distance;
+		}
+	}
+	
+	private Location[] numberCells() {
+		List<Location> locations = new ArrayList<>();
+		for (int row = 0; row < board.length; row++) {
+			cellIndices[row] = new int[board[row].length];
+			for (int col = 0; col < board[row].length; col++) {
+				Location l = new Location(col, row);
+				if (isFree(l)) {
+					cellIndices[row][col] = locations.size();
+					locations.add(l);
+				} else {
+					cellIndices[row][col] = -1;
+				}
+			}
+		}
+		return locations.toArray(new Location[locations.size()]);
+	}
+	
+	/**
+	 * Get the number of free squares on this board, i.e. the range of
+	 * the cell indices returned by {@link #getCell(Location)}.
+	 * 
+	 * @return The number of cells
+	 */
+	public int getNumberOfCells() {
+		return cellLocations.length;
+	}
+	
+	/**
+	 * Get the dense index of the free square at the given {@link Location}.
+	 * 
+	 * @param l The location to look up
+	 * @return The cell index, or -1 if l is a wall or outside the board
+	 */
+	public int getCell(Location l) {
+		int row = l.getRow();
+		int col = l.getCol();
+		if (row < 0 || row >= board.length || col < 0 || col >= board[row].length)
+			return -1;
+		return cellIndices[row][col];
+	}
+	
+	public Location getLocation(int cell) {
+		return cellLocations[cell];
 	}
 	
-	public void setDeadlocks(Set<Location> deadlocks) {
-		this.deadlocks = deadlocks;
+	/**
+	 * Get the cell next to a cell in the given direction.
+	 * 
+	 * @param cell The cell index
+	 * @param move The direction to look in
+	 * @return The neighboring cell index, or -1 if there is a wall
+	 */
+	public int getNeighbor(int cell, Move move) {
+		return neighbors[cell * DIRECTIONS + move.ordinal()];
 	}
 	
+	/**
+	 * Get the {@link Reachability} of the current thread for this board.
+	 * 
+	 * @return The BFS buffers of the current thread
+	 */
+	public Reachability getReachability() {
+		return reachability.get();
+	}
+	
+	/**
+	 * Get the Zobrist key of a box standing on the given cell. The hash of a
+	 * set of boxes is the xor of the keys of their cells, so moving a box
+	 * from one cell to another updates the hash by xor-ing both keys.
+	 * 
+	 * @param cell The cell index
+	 * @return The random key of the cell
+	 */
+	public long getBoxKey(int cell) {
+		return boxKeys[cell];
+	}
+	
+	/**
+	 * Get the Zobrist key of the (normalized) player standing on the given cell.
+	 * 
+	 * @param cell The cell index, or a negative value for "no particular cell"
+	 * @return The random key of the cell, or cell itself if it's negative
+	 */
+	public long getPlayerKey(int cell) {
+		return cell < 0 ? cell : playerKeys[cell];
+	}
+	
+	/**
+	 * Compute the Zobrist hash of a set of boxes from scratch.
+	 * 
+	 * @param boxes The cells of the boxes
+	 * @return The xor of the keys of all box cells
+	 */
+	public long hashBoxes(BitSet boxes) {
+		long hash = 0;
+		for (int cell = boxes.nextSetBit(0); cell >= 0; cell = boxes.nextSetBit(cell + 1))
+			hash ^= boxKeys[cell];
+		return hash;
+	}
+	
+	/**
+	 * Encode a collection of boxes as a set of cell indices.
+	 * 
+	 * @param boxes The boxes to encode
+	 * @return A {@link BitSet} with the cell of every box set
+	 */
+	public BitSet toCells(Collection<Box> boxes) {
+		BitSet cells = new BitSet(getNumberOfCells());
+		for (Box box : boxes)
+			cells.set(getCell(box.getLocation()));
+		return cells;
+	}
+	
+	public Set<Goal> getGoals() {
+		return goals;
+	}
+	
+	/**
+	 * Register a tunnel, i.e. a corridor a box can be pushed through in
+	 * one go, running from start to end in the given direction.
+	 * 
+	 * @param start The location a box enters the tunnel at
+	 * @param end The location a box leaves the tunnel at
+	 * @param direction The direction from start to end
+	 */
 	public void addTunnel(Location start, Location end, Move direction) {
-		TunnelStart tunnelStart = new TunnelStart(start, direction);
-		tunnels.put(tunnelStart, end);
+		int startCell = getCell(start);
+		if (startCell >= 0)
+			tunnelEnds[startCell * DIRECTIONS + direction.ordinal()] = getCell(end);
 	}
 	
 	public void setGoalAreas(List<ForwardsGameState.GoalArea> goalAreas) {
@@ -44,6 +429,18 @@ public class Board {
 		return goalAreas;
 	}
 	
+	/**
+	 * Mark the map as unsolvable, because a box can never be moved to a
+	 * goal, see {@link ForwardsGameState#removeWalledInBoxes}.
+	 */
+	public void markUnsolvable() {
+		isSolvable = false;
+	}
+	
+	public boolean isSolvable() {
+		return isSolvable;
+	}
+	
 	public boolean isFree(Location l) {
 		int col = l.getCol();
 		int row = l.getRow();
@@ -59,15 +456,24 @@ public class Board {
 	}
 	
 	public boolean isDeadlockLocation(Location l) {
-		return deadlocks.contains(l);
+		int cell = getCell(l);
+		return cell >= 0 && deadlockCells.get(cell);
 	}
 	
-	public boolean isStartOfTunnel(Location l, Move direction) {
-		return tunnels.containsKey(new TunnelStart(l, direction));
+	public boolean isDeadlockCell(int cell) {
+		return deadlockCells.get(cell);
 	}
 	
-	public Location getEndOfTunnel(Location l, Move direction) {
-		return tunnels.get(new TunnelStart(l, direction));
+	/**
+	 * Get the cell at the other end of the tunnel that starts at the given
+	 * cell and runs in the given direction, see {@link #addTunnel}.
+	 * 
+	 * @param cell The cell index of the start of the tunnel
+	 * @param direction The direction of the tunnel
+	 * @return The cell index of the end of the tunnel, or -1 if there is no such tunnel
+	 */
+	public int getTunnelEnd(int cell, Move direction) {
+		return tunnelEnds[cell * DIRECTIONS + direction.ordinal()];
 	}
 	
 	public char getCharForLocation(Location loc) {
@@ -82,52 +488,87 @@ public class Board {
 		return getCharForLocation(l) == goalChar;
 	}
 	
-	private final class TunnelStart {
-		@Override
-		public int hashCode() {
-			final int prime = 31;
-			int result = 1;
-			result = prime * result
-					+ ((direction == null) ? 0 : direction.hashCode());
-			result = prime * result + ((start == null) ? 0 : start.hashCode());
-			return result;
-		}
-
-		@Override
-		public boolean equals(Object obj) {
-			if (this == obj)
-				return true;
-			if (obj == null)
-				return false;
-			if (getClass() != obj.getClass())
-				return false;
-			TunnelStart other = (TunnelStart) obj;
-			if (direction != other.direction)
-				return false;
-			if (start == null) {
-				if (other.start != null)
-					return false;
-			} else if (!start.equals(other.start))
-				return false;
-			return true;
-		}
-
-		Location start;
-		Move direction;
-		
-		TunnelStart(Location start, Move direction) {
-			this.start = start;
-			this.direction = direction;
-		}
+	public boolean isGoal (int cell) {
+		return goalCells.get(cell);
+	}
+	
+	public int getNumberOfGoals() {
+		return goalCellsByNumber.length;
+	}
+	
+	/**
+	 * Get the minimum number of times a box has to be moved to get from a
+	 * cell to a goal, if there were no other boxes on the board.
+	 * 
+	 * @param cell The cell index of the box
+	 * @param goal The number of the goal, from 0 to {@link #getNumberOfGoals()}
+	 * @return The number of moves, or {@link #UNREACHABLE} if the box can't
+	 * get to the goal at all
+	 */
+	public int getGoalDistance(int cell, int goal) {
+		return goalDistances[cell][goal];
 	}
 	
+	/**
+	 * Get the distance from a cell to the goal closest to it, see
+	 * {@link #getGoalDistance(int, int)}.
+	 * 
+	 * @param cell The cell index of the box
+	 * @return The number of moves, or {@link #UNREACHABLE} if the box can't
+	 * get to any goal
+	 */
+	public int getNearestGoalDistance(int cell) {
+		int nearest = UNREACHABLE;
+		for (int distance : goalDistances[cell])
+			nearest = Math.min(nearest, distance);
+		return nearest;
+	}
+	
+	/**
+	 * Get the {@link MatchingHeuristic} of the current thread for this board.
+	 * 
+	 * @return The matching buffers of the current thread
+	 */
+	public MatchingHeuristic getMatchingHeuristic() {
+		return matchingHeuristic.get();
+	}
+	
+	/**
+	 * Drop the {@link Reachability} and {@link MatchingHeuristic} of the
+	 * current thread. A thread that outlives its search, such as a worker of
+	 * a pool, must call this when it is done with the board, or the board
+	 * stays reachable from the thread.
+	 */
+	public void releaseThreadBuffers() {
+		reachability.remove();
+		matchingHeuristic.remove();
+	}
+	
+	/**
+	 * Get the {@link DeadlockPatterns} learned on this board so far, which
+	 * are shared by all threads.
+	 * 
+	 * @return The deadlock patterns of this board
+	 */
+	public DeadlockPatterns getDeadlockPatterns() {
+		return deadlockPatterns;
+	}
+	
+	/**
+	 * Get the {@link SearchMetrics} of the searches on this board.
+	 * 
+	 * @return The metrics of this board
+	 */
+	public SearchMetrics getMetrics() {
+		return metrics;
+	}
 	
 	public Board subBoard(int col, int row, int width, int height) {
 		char[][] subBoard = new char[height][width];
 		for (int i = 0; i < height; i++)
 			subBoard[i] = Arrays.copyOfRange(board[row++], col, col + width);
 		//TODO modify goals so that it only contains the goals in the subboard
-		return new Board(subBoard, goals, goalChar);
+		return new Board(subBoard, goals, goalChar, boxesArePulled);
 	}
 	
 	public Location getPlayerEndLocation () {
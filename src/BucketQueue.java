@@ -0,0 +1,117 @@
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A priority queue for elements with small, non-negative integer priorities,
+ * such as the f-scores of the A* algorithm.
+ * <p>
+ * Every priority has its own FIFO bucket, so elements with equal priority
+ * are polled in the order they were added. Adding and polling are O(1)
+ * amortized, and the priority of a queued element can be lowered with
+ * {@link #decreaseKey(Object, int)}. Replaced entries are left in their old
+ * bucket and skipped when they are reached.
+ *
+ * @param <E> The type of the queued elements
+ */
+public class BucketQueue<E> {
+
+	private final Map<E, Entry<E>> entries = new HashMap<>();
+	private final List<ArrayDeque<Entry<E>>> buckets = new ArrayList<>();
+	private int lowestBucket = 0;
+
+	/**
+	 * Add an element to the queue. If an equal element is already queued it
+	 * is replaced by this one, with the new priority.
+	 *
+	 * @param element The element to add
+	 * @param priority The priority of the element, lower is polled first
+	 */
+	public void add(E element, int priority) {
+		if (priority < 0)
+			throw new IllegalArgumentException("Negative priority " + priority);
+		Entry<E> entry = new Entry<>(element, priority);
+		Entry<E> replaced = entries.put(element, entry);
+		if (replaced != null)
+			replaced.removed = true;
+		while (buckets.size() <= priority)
+			buckets.add(new ArrayDeque<Entry<E>>());
+		buckets.get(priority).addLast(entry);
+		lowestBucket = Math.min(lowestBucket, priority);
+	}
+
+	/**
+	 * Lower the priority of a queued element, replacing it with the given
+	 * instance. Does nothing if the element is queued with a lower or
+	 * equal priority already.
+	 *
+	 * @param element The element to update
+	 * @param priority The new priority
+	 * @return <code>true</code> if the element was updated
+	 */
+	public boolean decreaseKey(E element, int priority) {
+		Entry<E> entry = entries.get(element);
+		if (entry != null && entry.priority <= priority)
+			return false;
+		add(element, priority);
+		return true;
+	}
+
+	/**
+	 * Remove and return the element with the lowest priority.
+	 *
+	 * @return The first element, or <code>null</code> if the queue is empty
+	 */
+	public E poll() {
+		if (entries.isEmpty())
+			return null;
+		while (lowestBucket < buckets.size()) {
+			ArrayDeque<Entry<E>> bucket = buckets.get(lowestBucket);
+			while (!bucket.isEmpty()) {
+				Entry<E> entry = bucket.pollFirst();
+				if (entry.removed)
+					continue;
+				entries.remove(entry.element);
+				return entry.element;
+			}
+			lowestBucket++;
+		}
+		return null;
+	}
+
+	public boolean contains(E element) {
+		return entries.containsKey(element);
+	}
+
+	/**
+	 * Get the priority of a queued element.
+	 *
+	 * @param element The element to look up
+	 * @return The priority, or -1 if the element isn't queued
+	 */
+	public int getPriority(E element) {
+		Entry<E> entry = entries.get(element);
+		return entry == null ? -1 : entry.priority;
+	}
+
+	public boolean isEmpty() {
+		return entries.isEmpty();
+	}
+
+	public int size() {
+		return entries.size();
+	}
+
+	private static final class Entry<E> {
+		final E element;
+		final int priority;
+		boolean removed = false;
+
+		Entry(E element, int priority) {
+			this.element = element;
+			this.priority = priority;
+		}
+	}
+}
@@ -0,0 +1,271 @@
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayDeque;
+import java.util.BitSet;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * The deadlock patterns learned on a {@link Board}: small sets of boxes that
+ * can't all be moved to goals from some area of the player, even if there
+ * were no other boxes. Any state containing such a set of boxes, with the
+ * player in that area, is a deadlock.
+ * <p>
+ * A pattern is learned when a bounded sub-search from only its boxes runs
+ * out of states without finishing. Patterns are indexed by the cells of
+ * their boxes, so that a new state only has to be checked against the
+ * patterns of the box that was just moved. They are kept for as long as
+ * the board, are shared by all threads searching it, and can be saved to
+ * and loaded from a file per map.
+ */
+public class DeadlockPatterns {
+
+	// the most boxes a pattern may have, and the most states a sub-search may visit
+	private static final int MAX_PATTERN_BOXES = 3;
+	private static final int MAX_SEARCH_STATES = 300;
+
+	private final Board board;
+	// the patterns of every cell, created with the first pattern of the cell
+	private final AtomicReferenceArray<List<Pattern>> patternsByCell;
+	private final List<Pattern> patterns = new CopyOnWriteArrayList<>();
+	// sub-problems that couldn't be proven to be deadlocks, by hash
+	private final Set<Long> unproven = Collections.newSetFromMap(new ConcurrentHashMap<Long, Boolean>());
+	// sub-searches must not start sub-searches of their own
+	private final ThreadLocal<Boolean> isSearching = new ThreadLocal<Boolean>() {
+		@Override protected Boolean initialValue() {
+			return false;
+		}
+	};
+
+	public DeadlockPatterns(Board board) {
+		this.board = board;
+		patternsByCell = new AtomicReferenceArray<>(board.getNumberOfCells());
+	}
+
+	/**
+	 * Check whether a state matches a known pattern that includes the box
+	 * on the given cell.
+	 *
+	 * @param boxes The cells of the boxes of the state
+	 * @param playerCell The cell of the player
+	 * @param boxCell The cell of the box that was just moved
+	 * @return <code>true</code> if the state is a known deadlock
+	 */
+	public boolean matches(BitSet boxes, int playerCell, int boxCell) {
+		List<Pattern> cellPatterns = patternsByCell.get(boxCell);
+		if (cellPatterns == null)
+			return false;
+		for (Pattern pattern : cellPatterns)
+			if (pattern.matches(boxes, playerCell))
+				return true;
+		return false;
+	}
+
+	/**
+	 * Check whether a set of boxes is small enough to be searched by
+	 * {@link #isDeadlock}. Always false during a sub-search.
+	 *
+	 * @param numberOfBoxes The number of boxes
+	 * @return <code>true</code> if the boxes may be searched
+	 */
+	public boolean canSearch(int numberOfBoxes) {
+		return numberOfBoxes <= MAX_PATTERN_BOXES && !isSearching.get();
+	}
+
+	/**
+	 * Search whether the given boxes can be moved to goals from the given
+	 * player cell if there were no other boxes, learning a pattern if they
+	 * can't. The search overwrites the {@link Reachability} of the thread.
+	 *
+	 * @param boxes The cells of the boxes, at most {@link #canSearch} of them
+	 * @param playerCell The cell of the player
+	 * @return <code>true</code> if the boxes are known to be a deadlock
+	 */
+	public boolean isDeadlock(BitSet boxes, int playerCell) {
+		int boxCell = boxes.nextSetBit(0);
+		if (boxCell < 0)
+			return false;
+		if (matches(boxes, playerCell, boxCell))
+			return true;
+		Reachability reachability = board.getReachability();
+		reachability.explore(boxes, playerCell, -1);
+		long hash = board.hashBoxes(boxes) ^ board.getPlayerKey(reachability.getTopLeftCell());
+		if (unproven.contains(hash))
+			return false;
+		BitSet playerArea = new BitSet(board.getNumberOfCells());
+		for (int cell = 0; cell < board.getNumberOfCells(); cell++)
+			if (reachability.isReachable(cell))
+				playerArea.set(cell);
+
+		isSearching.set(true);
+		board.getMetrics().setCounting(false);
+		try {
+			if (!isUnsolvable(boxes, playerCell)) {
+				unproven.add(hash);
+				return false;
+			}
+		} finally {
+			isSearching.set(false);
+			board.getMetrics().setCounting(true);
+		}
+		add(new Pattern((BitSet) boxes.clone(), playerArea));
+		return true;
+	}
+
+	/*
+	 * A breadth first search, which is only conclusive if it runs out of
+	 * states. It has fewer boxes than goals, and is done once those boxes
+	 * are on goals. That is why getNextBoxStates may prune its successors
+	 * here too: a box on a deadlock cell or a frozen box off its goal can't
+	 * get to any goal, however many goals there are. A pattern proven
+	 * before needs only its own boxes. And a PI-corral only counts as
+	 * unfinished with a box off a goal on its border, which has to be moved
+	 * into it. Goal macros aren't applied here, and nested searches are
+	 * turned off by isSearching.
+	 */
+	private boolean isUnsolvable(BitSet boxes, int playerCell) {
+		GameState start = new ForwardsGameState(board, new Player(board.getLocation(playerCell)), boxes);
+		if (start.isDone())
+			return false;
+		Set<GameState> visited = new HashSet<>();
+		Deque<GameState> queue = new ArrayDeque<>();
+		visited.add(start);
+		queue.add(start);
+		while (!queue.isEmpty()) {
+			for (GameState next : queue.poll().getNextBoxStates()) {
+				if (next.isDone())
+					return false;
+				if (visited.add(next))
+					queue.add(next);
+			}
+			if (visited.size() > MAX_SEARCH_STATES)
+				return false;
+		}
+		return true;
+	}
+
+	private void add(Pattern pattern) {
+		patterns.add(pattern);
+		for (int cell = pattern.boxes.nextSetBit(0); cell >= 0; cell = pattern.boxes.nextSetBit(cell + 1)) {
+			patternsByCell.compareAndSet(cell, null, new CopyOnWriteArrayList<Pattern>());
+			patternsByCell.get(cell).add(pattern);
+		}
+	}
+
+	public int size() {
+		return patterns.size();
+	}
+
+	/**
+	 * Get the name of the pattern file of this board, which only depends on
+	 * the walls and goals of the map.
+	 *
+	 * @return The file name
+	 */
+	public String getFileName() {
+		// 64-bit FNV-1a of the squares of the board
+		long hash = 0xcbf29ce484222325L;
+		for (char[] row : board.getBoardMatrix()) {
+			for (char square : row)
+				hash = (hash ^ square) * 0x100000001b3L;
+			hash = (hash ^ '\n') * 0x100000001b3L;
+		}
+		return "deadlocks-" + Long.toHexString(hash) + ".txt";
+	}
+
+	/**
+	 * Load the patterns of this board from its file in a directory, if
+	 * there is one. Every line of the file is a pattern, written as the box
+	 * cells and the player cells separated by a semicolon.
+	 *
+	 * @param directory The directory of pattern files
+	 * @throws IOException If the file can't be read
+	 */
+	public void load(Path directory) throws IOException {
+		Path file = directory.resolve(getFileName());
+		if (!Files.exists(file))
+			return;
+		try (BufferedReader reader = Files.newBufferedReader(file, StandardCharsets.UTF_8)) {
+			String line;
+			while ((line = reader.readLine()) != null) {
+				String[] parts = line.split(";");
+				if (parts.length != 2)
+					throw new IOException("Bad deadlock pattern in " + file + ": " + line);
+				add(new Pattern(parseCells(parts[0]), parseCells(parts[1])));
+			}
+		}
+	}
+
+	/**
+	 * Save the patterns of this board to its file in a directory, see
+	 * {@link #load(Path)}.
+	 *
+	 * @param directory The directory of pattern files
+	 * @throws IOException If the file can't be written
+	 */
+	public void save(Path directory) throws IOException {
+		Files.createDirectories(directory);
+		try (BufferedWriter writer = Files.newBufferedWriter(directory.resolve(getFileName()), StandardCharsets.UTF_8)) {
+			for (Pattern pattern : patterns) {
+				writer.write(formatCells(pattern.boxes) + ";" + formatCells(pattern.playerArea));
+				writer.newLine();
+			}
+		}
+	}
+
+	private BitSet parseCells(String text) throws IOException {
+		BitSet cells = new BitSet(board.getNumberOfCells());
+		for (String cell : text.split(",")) {
+			int index;
+			try {
+				index = Integer.parseInt(cell.trim());
+			} catch (NumberFormatException e) {
+				throw new IOException("Bad cell in deadlock pattern: " + cell, e);
+			}
+			if (index < 0 || index >= board.getNumberOfCells())
+				throw new IOException("Cell out of range in deadlock pattern: " + index);
+			cells.set(index);
+		}
+		return cells;
+	}
+
+	private static String formatCells(BitSet cells) {
+		StringBuilder sb = new StringBuilder();
+		for (int cell = cells.nextSetBit(0); cell >= 0; cell = cells.nextSetBit(cell + 1)) {
+			if (sb.length() > 0)
+				sb.append(',');
+			sb.append(cell);
+		}
+		return sb.toString();
+	}
+
+	private static final class Pattern {
+		final BitSet boxes;
+		// the cells the player can be on for the boxes to be a deadlock
+		final BitSet playerArea;
+
+		Pattern(BitSet boxes, BitSet playerArea) {
+			this.boxes = boxes;
+			this.playerArea = playerArea;
+		}
+
+		boolean matches(BitSet stateBoxes, int playerCell) {
+			if (!playerArea.get(playerCell))
+				return false;
+			for (int cell = boxes.nextSetBit(0); cell >= 0; cell = boxes.nextSetBit(cell + 1))
+				if (!stateBoxes.get(cell))
+					return false;
+			return true;
+		}
+	}
+}
@@ -1,12 +1,14 @@
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
 import java.util.Collections;
 import java.util.Deque;
+import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Iterator;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
-import java.util.Map.Entry;
 import java.util.Queue;
 import java.util.Set;
 
@@ -17,131 +19,307 @@ public class ForwardsGameState extends AbstractGameState {
 	public static final char BOX = '$';
 	public static final char BOX_ON_GOAL = '*';
 	private static final int MAX_GOAL_AREA_SIZE = 35;
+	// the most single box searches the macro solutions of a goal area may take
+	private static final int MAX_GOAL_MACRO_SEARCHES = 200;
 	
-	ForwardsGameState (Board board, Player player, Set<Box> boxes) {
+	ForwardsGameState (Board board, Player player, BitSet boxes) {
 		super(board, player, boxes);
 	}
-	
-	ForwardsGameState (Board board, Player player, Set<Box> boxes, Move lastMove) {
-		super(board, player, boxes, lastMove);
-	}
 
-	ForwardsGameState (Board board, Player player, Set<Box> boxes, Deque<Move> movesToHere) {
-		super(board, player, boxes, movesToHere);
+	ForwardsGameState (Board board, Player player, BitSet boxes, long boxHash, int push) {
+		super(board, player, boxes, boxHash, push);
 	}
 	
-	ForwardsGameState (Board board, Player player, Set<Box> boxes, Set<Box> movableBoxes, Deque<Move> movesToHere) {
-		super(board, player, boxes, movableBoxes, movesToHere);
+	@Override protected AbstractGameState createState(Player player, BitSet boxes, long boxHash, int push) {
+		return new ForwardsGameState(board, player, boxes, boxHash, push);
+	}
+	
+	@Override protected Move getPlayerSide(Move direction) {
+		return direction.inverse(); // the player pushes from behind
 	}
 
 	@Override public boolean isDone() {
-		return boxesAreDone();
+		return board.isSolvable() && boxesAreDone();
 	}
 
 	@Override public List<GameState> getNextBoxStates() {
+		if (!board.isSolvable())
+			return new ArrayList<>();
+		long traceStart = Trace.start();
 		List<GameState> nextStates = new ArrayList<>();
-
-		List<BoxMove> possibleBoxMoves = new ArrayList<>();
-		for (Box box : movableBoxes) {
-			List<Move> possibleMoves = getPossibleMoves(box);
-			for (Move move : possibleMoves)
-				possibleBoxMoves.add (new BoxMove(box, move));
-		}
-		
-		// this generates BoxMoves mapped to the paths they would require
-		// if you were to PULL them. we therefore need to treat them
-		// "backwards" to obtain forwards GameStates
-		Map<BoxMove, Deque<Move>> movePaths = findBackwardsMovePathsBFS(possibleBoxMoves);
-		for (Entry<BoxMove, Deque<Move>> pathEntry : movePaths.entrySet()) {
-			BoxMove boxMove = pathEntry.getKey();
-			Deque<Move> moves = pathEntry.getValue();
-			Box box = boxMove.box;
-			Move realMove = boxMove.move.inverse(); // here is the double backwards part
-			
-			Player playerBeforeBoxMove = new Player(box.getLocation().move(boxMove.move));
-			Player movedPlayer = playerBeforeBoxMove.move(realMove);
-			Box movedBox = box.move(realMove);
-			
-			Set<Box> newBoxes = new HashSet<>(boxes);
-			newBoxes.remove(box);
-			moves.addLast (realMove);
-			
-			if (board.isStartOfTunnel(movedBox.getLocation(), realMove)) {
-				Location start = movedBox.getLocation();
-				List<Move> tunnelPath = start.getLinearPathTo(board.getEndOfTunnel(start, realMove));
-				
-				for (Move tunnelMove : tunnelPath) {
-					if(boxes.contains(movedBox.move(tunnelMove))) {
+		
+		/*
+		 * Find the reachable pushes first, so that hashing or replaying the
+		 * new states can't overwrite the shared Reachability meanwhile.
+		 */
+		Reachability reachability = explore(-1);
+		int[] pushes = new int[movableBoxes.cardinality() * MOVES.length];
+		int numberOfPushes = 0;
+		for (int cell = movableBoxes.nextSetBit(0); cell >= 0; cell = movableBoxes.nextSetBit(cell + 1)) {
+			int possibleMoves = getPossibleMoves(cell);
+			for (Move move : MOVES) {
+				if ((possibleMoves & (1 << move.ordinal())) == 0
+						|| !reachability.isReachable(board.getNeighbor(cell, move.inverse())))
+					continue;
+				if (board.isDeadlockCell(board.getNeighbor(cell, move)))
+					board.getMetrics().increment(SearchMetrics.Counter.SIMPLE_DEADLOCKS);
+				else
+					pushes[numberOfPushes++] = Push.encode(cell, move, 1);
+			}
+		}
+		DeadlockPatterns patterns = board.getDeadlockPatterns();
+		int[] corralPushes = findCorralPushes(reachability, patterns);
+		if (corralPushes != null) {
+			board.getMetrics().increment(SearchMetrics.Counter.PI_CORRALS);
+			pushes = corralPushes;
+			numberOfPushes = corralPushes.length;
+		}
+		
+		for (int i = 0; i < numberOfPushes; i++) {
+			int cell = Push.getCell(pushes[i]);
+			Move move = Push.getDirection(pushes[i]);
+			int movedBoxCell = board.getNeighbor(cell, move);
+			int pushLength = 1;
+			int tunnelEnd = board.getTunnelEnd(movedBoxCell, move);
+			if (tunnelEnd >= 0) {
+				while (movedBoxCell != tunnelEnd) {
+					int next = board.getNeighbor(movedBoxCell, move);
+					if (boxes.get(next))
 						break;
-					}
-					
-					movedPlayer = movedPlayer.move(tunnelMove);
-					movedBox = movedBox.move(tunnelMove);
-					moves.addLast (tunnelMove);
+					movedBoxCell = next;
+					pushLength++;
 				}
 			}
 			
-			newBoxes.add(movedBox);
-			ForwardsGameState state = new ForwardsGameState(board, movedPlayer, newBoxes, moves);
-			if (!isDeadlockState(state, movedBox)) {
+			BitSet newBoxes = (BitSet) boxes.clone();
+			newBoxes.clear(cell);
+			newBoxes.set(movedBoxCell);
+			long newBoxHash = boxHash ^ board.getBoxKey(cell) ^ board.getBoxKey(movedBoxCell);
+			int push = Push.encode(cell, move, pushLength);
+			Player movedPlayer = new Player(board.getLocation(board.getNeighbor(movedBoxCell, move.inverse())));
+			ForwardsGameState state = new ForwardsGameState(board, movedPlayer, newBoxes, newBoxHash, push);
+			if (isDeadlockState(state, movedBoxCell))
+				board.getMetrics().increment(SearchMetrics.Counter.FREEZE_DEADLOCKS);
+			else if (patterns.matches(newBoxes, board.getCell(movedPlayer.getLocation()), movedBoxCell))
+				board.getMetrics().increment(SearchMetrics.Counter.PATTERN_DEADLOCKS);
+			else
 				nextStates.add(state);
-			}
 		}
+		Trace.end(Trace.Phase.SUCCESSORS, traceStart);
 		return nextStates;
 	}
 	
-	private boolean isDeadlockState (ForwardsGameState state, Box movedBox) {
-		Set<Box> visitedBoxes = new HashSet<>();
-		return isDeadlockStateRecursive (state, movedBox, visitedBoxes);
+	/*
+	 * Look for a PI-corral, an area the player can't reach that isn't
+	 * finished, where every push of a box on its border can only go into
+	 * the area and the player can make each of those pushes right now.
+	 * Some push into such a corral has to be made sooner or later, and
+	 * nothing outside it can get in the way, so it might as well be made
+	 * first. Returns the pushes into the PI-corral with the fewest of them,
+	 * none at all if it can never be entered, or null if there is no
+	 * PI-corral.
+	 * 
+	 * The boxes around a small corral are also searched on their own, and
+	 * if they can't be moved to goals even then, the state is a deadlock
+	 * and a new deadlock pattern is learned.
+	 */
+	private int[] findCorralPushes(Reachability reachability, DeadlockPatterns patterns) {
+		int[] best = null;
+		List<BitSet> smallCorrals = new ArrayList<>();
+		Corrals corrals = new Corrals(board.getNumberOfCells(), boxes.cardinality());
+		for (int cell = 0; cell < board.getNumberOfCells(); cell++) {
+			if (corrals.corralOf[cell] != 0 || reachability.isReachable(cell) || boxes.get(cell))
+				continue;
+			int corral = corrals.fill(this, cell);
+			int[] corralPushes = getCorralPushes(reachability, corrals, corral);
+			if (corralPushes != null && (best == null || corralPushes.length < best.length))
+				best = corralPushes;
+			if (patterns.canSearch(corrals.numberOfBorderBoxes) && corrals.numberOfBorderBoxes < boxes.cardinality()) {
+				BitSet borderBoxes = new BitSet(board.getNumberOfCells());
+				for (int i = 0; i < corrals.numberOfBorderBoxes; i++)
+					borderBoxes.set(corrals.borderBoxes[i]);
+				smallCorrals.add(borderBoxes);
+			}
+		}
+		if (best != null && best.length == 0)
+			return best;
+		// the searches overwrite the reachability, which isn't needed anymore
+		for (BitSet borderBoxes : smallCorrals)
+			if (patterns.isDeadlock(borderBoxes, getPlayerCell()))
+				return new int[0];
+		return best;
 	}
-
-	private boolean isDeadlockStateRecursive(ForwardsGameState state, Box box,
-			Set<Box> visitedBoxes) {
-		visitedBoxes.add(box);
-		if (board.isGoal(box.getLocation()))
-			return false; // treat goals as non-deadlocks
-		if (!state.getPossibleMoves(box).isEmpty())
+	
+	/*
+	 * The pushes into a corral if it's an unfinished PI-corral, otherwise
+	 * null. A push that a box outside the corral stands in the way of
+	 * could be made later on, so such a push rules the corral out. A push
+	 * from inside the corral, or that another box of the corral stands in
+	 * the way of, can't be the first push of the corral, and is ignored.
+	 *
+	 * When there are fewer boxes than goals, as in the searches of
+	 * DeadlockPatterns, a goal may stay empty for good, so only a box off
+	 * its goal leaves the corral unfinished.
+	 */
+	private int[] getCorralPushes(Reachability reachability, Corrals corrals, int corral) {
+		boolean isFinished = true;
+		boolean goalsMayStayEmpty = boxes.cardinality() < board.getNumberOfGoals();
+		for (int i = 0; i < corrals.size && isFinished && !goalsMayStayEmpty; i++)
+			isFinished = !board.isGoal(corrals.cells[i]);
+		int[] corralPushes = new int[corrals.numberOfBorderBoxes * MOVES.length];
+		int numberOfPushes = 0;
+		for (int i = 0; i < corrals.numberOfBorderBoxes; i++) {
+			int box = corrals.borderBoxes[i];
+			isFinished = isFinished && board.isGoal(box);
+			if (!movableBoxes.get(box))
+				return null; // filled in by a goal macro, which follows rules of its own
+			for (Move move : MOVES) {
+				int from = board.getNeighbor(box, move.inverse());
+				int to = board.getNeighbor(box, move);
+				if (from < 0 || to < 0 || board.isDeadlockCell(to) || corrals.corralOf[from] == corral
+						|| corrals.borderOf[from] == corral || corrals.borderOf[to] == corral)
+					continue;
+				if (corrals.corralOf[to] != corral || !reachability.isReachable(from))
+					return null;
+				corralPushes[numberOfPushes++] = Push.encode(box, move, 1);
+			}
+		}
+		if (isFinished)
+			return null;
+		return Arrays.copyOf(corralPushes, numberOfPushes);
+	}
+	
+	/**
+	 * The areas of a state the player can't reach, numbered from 1, and the
+	 * boxes around them. Only the cells and border boxes of the last filled
+	 * corral are listed.
+	 */
+	private static final class Corrals {
+		
+		final int[] corralOf;
+		final int[] borderOf;
+		final int[] cells;
+		final int[] borderBoxes;
+		int size;
+		int numberOfBorderBoxes;
+		private int corrals = 0;
+		
+		Corrals(int numberOfCells, int numberOfBoxes) {
+			corralOf = new int[numberOfCells];
+			borderOf = new int[numberOfCells];
+			cells = new int[numberOfCells];
+			borderBoxes = new int[numberOfBoxes];
+		}
+		
+		int fill(ForwardsGameState state, int start) {
+			int corral = ++corrals;
+			size = 0;
+			numberOfBorderBoxes = 0;
+			corralOf[start] = corral;
+			cells[size++] = start;
+			for (int head = 0; head < size; head++) {
+				for (Move move : MOVES) {
+					int neighbor = state.board.getNeighbor(cells[head], move);
+					if (neighbor < 0 || corralOf[neighbor] == corral || borderOf[neighbor] == corral)
+						continue;
+					if (state.boxes.get(neighbor)) {
+						borderOf[neighbor] = corral;
+						borderBoxes[numberOfBorderBoxes++] = neighbor;
+					} else {
+						corralOf[neighbor] = corral;
+						cells[size++] = neighbor;
+					}
+				}
+			}
+			return corral;
+		}
+	}
+	
+	/*
+	 * A freeze deadlock: the box just moved can never be moved again, and it
+	 * or a box it is frozen together with isn't on a goal.
+	 */
+	private boolean isDeadlockState (ForwardsGameState state, int movedBoxCell) {
+		FreezeCheck check = new FreezeCheck(state);
+		if (!check.isFrozen(movedBoxCell))
 			return false;
-		
-		List<Box> adjacentBoxes = getAdjacentBoxes(box, state.getBoxes(), visitedBoxes);
-		for (Box adjacentBox : adjacentBoxes)
-			if (!isDeadlockStateRecursive(state, adjacentBox, visitedBoxes))
-				return false;
-		
-		return true;
+		for (int i = 0; i < check.numberOfFrozenBoxes; i++)
+			if (!board.isGoal(check.frozenBoxes[i]))
+				return true;
+		return false;
 	}
 	
-	private List<Box> getAdjacentBoxes (Box box, Set<Box> newBoxes, Set<Box> visitedBoxes) {
-		List<Box> adjacentBoxes = new ArrayList<>();
-		for (Move move : Move.values()) {
-			Box adjacent = box.move(move);
-			if (newBoxes.contains(adjacent) && !visitedBoxes.contains(adjacent))
-				adjacentBoxes.add(adjacent);
-		}
-		return adjacentBoxes;
+	/**
+	 * Finds out whether a box is frozen, i.e. can't be pushed along either
+	 * axis ever again. A box is blocked along an axis by a wall on either
+	 * side, by deadlock cells on both sides, or by a frozen box on either
+	 * side. Boxes that are being checked count as walls, which handles
+	 * boxes freezing each other in cycles such as 2x2 blocks.
+	 */
+	private static final class FreezeCheck {
+		
+		private final ForwardsGameState state;
+		private final Board board;
+		private final BitSet checking;
+		// the boxes found frozen, in the order they were found
+		private final int[] frozenBoxes;
+		private int numberOfFrozenBoxes = 0;
+		
+		FreezeCheck(ForwardsGameState state) {
+			this.state = state;
+			board = state.board;
+			checking = new BitSet(board.getNumberOfCells());
+			frozenBoxes = new int[state.boxes.cardinality()];
+		}
+		
+		boolean isFrozen(int box) {
+			int frozenBefore = numberOfFrozenBoxes;
+			checking.set(box);
+			boolean frozen = isBlocked(box, Move.LEFT, Move.RIGHT) && isBlocked(box, Move.UP, Move.DOWN);
+			checking.clear(box);
+			if (frozen) {
+				frozenBoxes[numberOfFrozenBoxes++] = box;
+			} else {
+				// boxes found frozen on the assumption that this one was are not
+				numberOfFrozenBoxes = frozenBefore;
+			}
+			return frozen;
+		}
+		
+		private boolean isBlocked(int box, Move direction, Move opposite) {
+			int one = board.getNeighbor(box, direction);
+			int other = board.getNeighbor(box, opposite);
+			if (one < 0 || other < 0)
+				return true;
+			if (board.isDeadlockCell(one) && board.isDeadlockCell(other))
+				return true;
+			return isFrozenNeighbor(one) || isFrozenNeighbor(other);
+		}
+		
+		private boolean isFrozenNeighbor(int cell) {
+			if (!state.boxes.get(cell))
+				return false;
+			if (checking.get(cell))
+				return true;
+			for (int i = 0; i < numberOfFrozenBoxes; i++)
+				if (frozenBoxes[i] == cell)
+					return true;
+			return isFrozen(cell);
+		}
 	}
 
-	private List<Move> getPossibleMoves (Movable<?> m) {
-		List<Move> possibleMoves = new ArrayList<>();
-		Location oneUp = m.getLocation().move(Move.UP);
-		Location oneRight = m.getLocation().move(Move.RIGHT);
-		Location oneDown = m.getLocation().move(Move.DOWN);
-		Location oneLeft = m.getLocation().move(Move.LEFT);
-		if (isFreeForPlayer(oneUp, oneDown)) {
-			if(!board.isDeadlockLocation(oneDown)) {
-				possibleMoves.add(Move.UP);
-			}
-			if(!board.isDeadlockLocation(oneUp)) {
-				possibleMoves.add(Move.DOWN);
-			}
-		}
-		if (isFreeForPlayer(oneRight, oneLeft)) {
-			if(!board.isDeadlockLocation(oneLeft)) {
-				possibleMoves.add(Move.RIGHT);
-			}
-			if(!board.isDeadlockLocation(oneRight)) {
-				possibleMoves.add(Move.LEFT);
-			}
+	/*
+	 * The directions the box on the given cell can be pushed in, ignoring
+	 * whether the player can reach it or the box can get to a goal from
+	 * where it ends up, as a bitmask of move ordinals.
+	 */
+	private int getPossibleMoves (int cell) {
+		int possibleMoves = 0;
+		for (Move move : MOVES) {
+			int from = board.getNeighbor(cell, move.inverse());
+			int to = board.getNeighbor(cell, move);
+			if (isFreeForPlayer(from) && isFreeForPlayer(to))
+				possibleMoves |= 1 << move.ordinal();
 		}
 		return possibleMoves;
 	}
@@ -152,7 +330,10 @@ public class ForwardsGameState extends AbstractGameState {
 		for (String s : boardStrings)
 			width = Math.max(width, s.length());
 		char[][] board = new char[height][width];
-		return fillBoard(board, boardStrings);
+		long traceStart = Trace.start();
+		ForwardsGameState state = fillBoard(board, boardStrings);
+		Trace.end(Trace.Phase.CALCULATE_BOARD, traceStart);
+		return state;
 	}
 
 	private static ForwardsGameState fillBoard(char[][] board, List<String> boardStrings) {
@@ -196,20 +377,23 @@ public class ForwardsGameState extends AbstractGameState {
 			}
 		}
 		
-		board = fillUnreachableLocationsWithWalls(board, player);
+		board = fillUnreachableLocationsWithWalls(board, player.getLocation());
+		boolean isSolvable = removeWalledInBoxes(board, boxes, goals);
 		
 		Board gameBoard = new Board(board, goals, GOAL);
+		if (!isSolvable)
+			gameBoard.markUnsolvable();
 		preprocess(gameBoard);
 		
-		ForwardsGameState state = new ForwardsGameState(gameBoard, player, boxes);
+		ForwardsGameState state = new ForwardsGameState(gameBoard, player, gameBoard.toCells(boxes));
 		return state;
 	}
 	
-	private static char[][] fillUnreachableLocationsWithWalls(char[][] board, Player player) {
+	static char[][] fillUnreachableLocationsWithWalls(char[][] board, Location playerLocation) {
 		Queue<Location> queue = new LinkedList<>();
-		queue.add(player.getLocation());
+		queue.add(playerLocation);
 		Set<Location> visited = new HashSet<>();
-		visited.add(player.getLocation());
+		visited.add(playerLocation);
 		
 		while (!queue.isEmpty()) {
 			Location location = queue.poll();
@@ -235,10 +419,40 @@ public class ForwardsGameState extends AbstractGameState {
 		return board;
 	}
 	
-	private static Set<Location> preprocess(Board gameBoard) {
-		Set<Location> deadlocks = new HashSet<>();
+	/**
+	 * Drop the boxes that {@link #fillUnreachableLocationsWithWalls} walled
+	 * in, since the player can never move them. A walled in box on a goal is
+	 * dropped together with its goal.
+	 * 
+	 * @param board The board with the unreachable squares walled off
+	 * @param boxes The boxes to drop the walled in boxes from
+	 * @param goals The goals to drop the goals of walled in boxes from
+	 * @return <code>false</code> if a walled in box isn't on a goal or a
+	 * walled in goal has no box, so that the map can't be solved
+	 */
+	static boolean removeWalledInBoxes(char[][] board, Set<Box> boxes, Set<Goal> goals) {
+		boolean isSolvable = true;
+		for (Iterator<Box> iterator = boxes.iterator(); iterator.hasNext(); ) {
+			Location location = iterator.next().getLocation();
+			if (getChar(board, location) != WALL)
+				continue;
+			iterator.remove();
+			if (!goals.remove(new Goal(location)))
+				isSolvable = false;
+		}
+		for (Goal goal : goals)
+			if (getChar(board, goal.getLocation()) == WALL)
+				isSolvable = false;
+		return isSolvable;
+	}
+	
+	/*
+	 * The deadlock cells are found by the Board itself, from the goal
+	 * distances of every cell.
+	 */
+	private static void preprocess(Board gameBoard) {
+		long traceStart = Trace.start();
 		Set<Location> entrances = new HashSet<>();
-		Set<CornerLocation> corners = new HashSet<>();
 		
 		char[][] board = gameBoard.getBoardMatrix();
 		
@@ -252,221 +466,14 @@ public class ForwardsGameState extends AbstractGameState {
 				if(isEntrance(board, current)) {
 					entrances.add(current);
 				}
-				Corner corner = findCorner(board, current);
-				if(corner != null) {
-					corners.add(new CornerLocation(current, corner));
-				}
 			}
 		}
 		
-		deadlocks = findDeadlocks(gameBoard, corners);
-		
 		List<GoalArea> goalAreas = findGoalAreas(gameBoard, entrances);
 		gameBoard.setGoalAreas(goalAreas);
 		
 		findTunnels(entrances, gameBoard, goalAreas);
-		
-		gameBoard.setDeadlocks(deadlocks);
-		
-		return deadlocks;
-	}
-	
-	private static Corner findCorner(char[][] board, Location current) {
-		char c = getChar(board, current);
-		if(c == WALL || c == GOAL || c == BOX_ON_GOAL || c == PLAYER_ON_GOAL) {
-			return null;
-		}
-		
-		boolean isBlockedUp = isBlocked(board, current.move(Move.UP));
-		boolean isBlockedDown = isBlocked(board, current.move(Move.DOWN));
-		boolean isBlockedLeft = isBlocked(board, current.move(Move.LEFT));
-		boolean isBlockedRight = isBlocked(board, current.move(Move.RIGHT));
-		
-		Corner corner = Corner.identifyCorner(isBlockedUp, isBlockedDown, isBlockedLeft, isBlockedRight);
-		return corner;
-	}
-	
-	private static Set<Location> findDeadlocks(Board board, Set<CornerLocation> locations) {
-		HashSet<Location> deadlocks = new HashSet<>();
-		for(CornerLocation cornerLocation : locations) {
-			Corner corner = cornerLocation.corner;
-			Set<Location> deadlocksDown = null;
-			Set<Location> deadlocksLeft = null;
-			Set<Location> deadlocksUp = null;
-			Set<Location> deadlocksRight = null;
-			
-			switch(corner) {
-			case UP_RIGHT:
-				deadlocksDown = findDeadlocksInDirection(board, cornerLocation, Move.DOWN, Move.RIGHT);
-				deadlocksLeft = findDeadlocksInDirection(board, cornerLocation, Move.LEFT, Move.UP);
-				break;
-			case UP_LEFT:
-				deadlocksDown = findDeadlocksInDirection(board, cornerLocation, Move.DOWN, Move.LEFT);
-				deadlocksRight = findDeadlocksInDirection(board, cornerLocation, Move.RIGHT, Move.RIGHT);
-				break;
-			case DOWN_RIGHT:
-				deadlocksUp = findDeadlocksInDirection(board, cornerLocation, Move.UP, Move.RIGHT);
-				deadlocksLeft = findDeadlocksInDirection(board, cornerLocation, Move.LEFT, Move.DOWN);
-				break;
-			case DOWN_LEFT:
-				deadlocksUp = findDeadlocksInDirection(board, cornerLocation, Move.UP, Move.LEFT);
-				deadlocksRight = findDeadlocksInDirection(board, cornerLocation, Move.RIGHT, Move.DOWN);
-				break;
-			}
-			
-			deadlocks.add(cornerLocation.location);
-			
-			if(deadlocksDown != null) {
-				deadlocks.addAll(deadlocksDown);
-			}
-			if(deadlocksLeft != null) {
-				deadlocks.addAll(deadlocksLeft);
-			}
-			if(deadlocksRight != null) {
-				deadlocks.addAll(deadlocksRight);
-			}
-			if(deadlocksUp != null) {
-				deadlocks.addAll(deadlocksUp);
-			}
-		}
-		
-		return deadlocks;
-	}
-	
-	private static Set<Location> findDeadlocksInDirection(Board board, CornerLocation cornerLocation, Move direction, Move wallDirection) {
-		Set<Location> deadlocks = new HashSet<>();
-		
-		Location current = cornerLocation.location.move(direction);
-		Location wall = current.move(wallDirection);
-		
-		while(getChar(board.getBoardMatrix(), wall) == WALL) {
-			deadlocks.add(current);
-			if(getChar(board.getBoardMatrix(), current) == GOAL) {
-				return null;
-			}
-			
-			Corner corner = findCorner(board.getBoardMatrix(), current);
-			if(corner != null) {
-				Corner oppositeCorner = Corner.opposite(cornerLocation.corner, direction);
-				if(corner == oppositeCorner) {
-					return deadlocks;
-				} else {
-					return null;
-				}
-			}
-			
-			current = current.move(direction);
-			if(isBlocked(board.getBoardMatrix(), current)) {
-				break;
-			}
-			wall = current.move(wallDirection);
-		}
-		
-		return null;
-	}
-	
-	private static final class CornerLocation {
-		Location location;
-		Corner corner;
-		private CornerLocation(Location location, Corner corner) {
-			this.location = location;
-			this.corner = corner;
-		}
-		@Override
-		public int hashCode() {
-			final int prime = 31;
-			int result = 1;
-			result = prime * result
-					+ ((location == null) ? 0 : location.hashCode());
-			return result;
-		}
-		@Override
-		public boolean equals(Object obj) {
-			if (this == obj)
-				return true;
-			if (obj == null)
-				return false;
-			if (getClass() != obj.getClass())
-				return false;
-			CornerLocation other = (CornerLocation) obj;
-			if (location == null) {
-				if (other.location != null)
-					return false;
-			} else if (!location.equals(other.location))
-				return false;
-			return true;
-		}
-	}
-	
-	private static enum Corner {
-		UP_RIGHT(true, false, false, true),
-		UP_LEFT(true, false, true, false),
-		DOWN_RIGHT(false, true, false, true),
-		DOWN_LEFT(false, true, true, false);
-		
-		private final boolean isUpBlocked;
-		private final boolean isDownBlocked;
-		private final boolean isLeftBlocked;
-		private final boolean isRightBlocked;
-		
-		private Corner(boolean isUpBlocked, boolean isDownBlocked, boolean isLeftBlocked, boolean isRightBlocked) {
-			this.isUpBlocked = isUpBlocked;
-			this.isDownBlocked = isDownBlocked;
-			this.isLeftBlocked = isLeftBlocked;
-			this.isRightBlocked = isRightBlocked;
-		}
-		
-		public static Corner identifyCorner(boolean isUpBlocked, boolean isDownBlocked, boolean isLeftBlocked, boolean isRightBlocked) {
-			for(Corner corner : Corner.values()) {
-				boolean isSame = true;
-				isSame = isSame && corner.isUpBlocked == isUpBlocked;
-				isSame = isSame && corner.isDownBlocked == isDownBlocked;
-				isSame = isSame && corner.isRightBlocked == isRightBlocked;
-				isSame = isSame && corner.isLeftBlocked == isLeftBlocked;
-				
-				if(isSame) {
-					return corner;
-				}
-			}
-			return null;
-		}
-		
-		public static Corner opposite(Corner corner, Move direction) {
-//			this code is really bad... Don't kill me please
-			Corner found = null;
-			switch(corner) {
-				case UP_RIGHT:
-					if(direction == Move.DOWN) {
-						found = Corner.DOWN_RIGHT;
-					} else if(direction == Move.LEFT) {
-						found = Corner.UP_LEFT;
-					}
-					break;
-				case UP_LEFT:
-					if(direction == Move.DOWN) {
-						found = Corner.DOWN_RIGHT;
-					} else if(direction == Move.RIGHT) {
-						found = Corner.UP_RIGHT;
-					}
-					break;
-				case DOWN_RIGHT:
-					if(direction == Move.UP) {
-						found = Corner.UP_RIGHT;
-					} else if(direction == Move.LEFT) {
-						found = Corner.DOWN_LEFT;
-					}
-					break;
-				case DOWN_LEFT:
-					if(direction == Move.UP) {
-						found = Corner.UP_LEFT;
-					} else if(direction == Move.RIGHT) {
-						found = Corner.DOWN_RIGHT;
-					}
-					break;
-			}
-			
-			return found;
-		}
+		Trace.end(Trace.Phase.PREPROCESS, traceStart);
 	}
 	
 	private static boolean isBlocked(char[][] board, Location loc) {
@@ -667,8 +674,8 @@ public class ForwardsGameState extends AbstractGameState {
 	
 	@Override public String toString() {
 		char[][] matrix = board.getBoardMatrix ();
-		for (Box box : boxes) {
-			Location l = box.getLocation();
+		for (int box = boxes.nextSetBit(0); box >= 0; box = boxes.nextSetBit(box + 1)) {
+			Location l = board.getLocation(box);
 			char c = board.getCharForLocation(l);
 			if (c == GOAL)
 				matrix[l.getRow()][l.getCol()] = BOX_ON_GOAL;
@@ -705,15 +712,11 @@ public class ForwardsGameState extends AbstractGameState {
 			for (GoalArea goalArea : board.getGoalAreas()) {
 				if (goalArea.solutionsToGoals.isEmpty())
 					continue;
-				for (Box box : boxes) {
-					if (box.getLocation().equals(goalArea.getEntrance())) {
-						GameState dummy = getPlayerMoveGameState(goalArea.getInitialPlayerLocation());
-						if (dummy != null) {
-							Deque<Move> pathToEntrance = dummy.getMovesToHere();
-							if (pathToEntrance != null)
-								return goalArea.performMacro(this, box, pathToEntrance);
-						}
-					}
+				if (hasBox(goalArea.getEntrance())) {
+					Box box = new Box(goalArea.getEntrance());
+					GameState dummy = getPlayerMoveGameState(goalArea.getInitialPlayerLocation());
+					if (dummy != null)
+						return goalArea.performMacro(this, box);
 				}
 			}
 		}
@@ -729,6 +732,11 @@ public class ForwardsGameState extends AbstractGameState {
 		private List<Solution> solutionsToGoals;
 		private List<List<Player>> playerPositionsInSolutions;
 		private List<List<Box>> boxPositionsInSolutions;
+		// the solutions for every set of goals left that was tried, while calculating them
+		private Map<Set<Goal>, List<Solution>> solutionsByGoalsLeft;
+		// the board all the searches are made on variants of, see Board.withGoalAndWalls
+		private Board baseBoard;
+		private int macroSearches;
 		
 		public GoalArea(Board board, Location playerLocation, Location entrance, 
 				Set<Goal> goals, Set<Location> squaresInArea) {
@@ -743,7 +751,14 @@ public class ForwardsGameState extends AbstractGameState {
 		}
 		
 		private void calculateSolutions() {
+			long traceStart = Trace.start();
+			solutionsByGoalsLeft = new HashMap<>();
+			baseBoard = new Board(board.getBoardMatrix(), new HashSet<>(goals), GOAL);
+			macroSearches = 0;
 			solutionsToGoals = findSolutionToGoals(goals);
+			solutionsByGoalsLeft = null;
+			baseBoard = null;
+			Trace.end(Trace.Phase.GOAL_AREA, traceStart);
 			for (Solution s : solutionsToGoals) {
 				if (s != null) {
 					List<Player> playerList = new ArrayList<>();
@@ -765,7 +780,21 @@ public class ForwardsGameState extends AbstractGameState {
 			}
 		}
 		
+		/*
+		 * The goals can be filled in many orders, and the orders that fail
+		 * share their sets of goals left, so the solutions are only found
+		 * once for each set.
+		 */
 		private List<Solution> findSolutionToGoals(Set<Goal> goalsLeft) {
+			List<Solution> solutions = solutionsByGoalsLeft.get(goalsLeft);
+			if (solutions == null) {
+				solutions = findUnknownSolutionToGoals(goalsLeft);
+				solutionsByGoalsLeft.put(new HashSet<>(goalsLeft), solutions);
+			}
+			return solutions;
+		}
+		
+		private List<Solution> findUnknownSolutionToGoals(Set<Goal> goalsLeft) {
 			List<Solution> solutions = new ArrayList<>();
 			for (Goal goal : goalsLeft) {
 				Solution solutionToThisGoal = findGoalMacroSolution(goalsLeft, goal, entrance);
@@ -788,26 +817,25 @@ public class ForwardsGameState extends AbstractGameState {
 		}
 
 		private Solution findGoalMacroSolution(Set<Goal> goalsLeft, Goal goal, Location entrance) {
-			char[][] dummyBoardMatrix = board.getBoardMatrix();
-			for (Goal g : goals) {
-				char type = GOAL;
-				if (!g.equals(goal)) {
-					type = FREE_SPACE;
-					if (goalsLeft.contains(g))
-						type = WALL;
-				}
-				dummyBoardMatrix[g.getLocation().getRow()][g.getLocation().getCol()] = type;
-			}
-			Set<Goal> thisGoal = new HashSet<>();
-			thisGoal.add(goal);
-			Board dummyBoard = new Board(dummyBoardMatrix, thisGoal, GOAL);
+			if (++macroSearches > MAX_GOAL_MACRO_SEARCHES)
+				return null; // the area is too big to plan, so it gets no macro
+			// the other goals left are filled before this one, the rest after it
+			List<Location> filledGoals = new ArrayList<>();
+			for (Goal g : goalsLeft)
+				if (!g.equals(goal))
+					filledGoals.add(g.getLocation());
+			Board dummyBoard = baseBoard.withGoalAndWalls(goal, filledGoals);
+			if (dummyBoard.getCell(initialPlayerLocation) < 0)
+				return null; // the player would stand on a goal filled before
 			Player dummyPlayer = new Player(initialPlayerLocation);
 			Set<Box> dummyBox = new HashSet<>();
 			dummyBox.add(new Box( new Location(entrance.getCol(), entrance.getRow())));
-			GameState dummyGameState = new ForwardsGameState(dummyBoard, dummyPlayer, dummyBox);
+			GameState dummyGameState = new ForwardsGameState(dummyBoard, dummyPlayer, dummyBoard.toCells(dummyBox));
 			AStarAlgorithm pathFinder = new AStarAlgorithm(dummyGameState);
 			while(!pathFinder.nextStep());
-			return pathFinder.getSolution();
+			Solution solution = pathFinder.getSolution();
+			dummyBoard.releaseThreadBuffers();
+			return solution;
 		}
 		
 		public Location getInitialPlayerLocation() {
@@ -818,11 +846,12 @@ public class ForwardsGameState extends AbstractGameState {
 			return entrance;
 		}
 		
-		public List<GameState> performMacro(GameState current, Box boxToMove, 
-				Deque<Move> movesToInitialPosition) {
+		public List<GameState> performMacro(GameState current, Box boxToMove) {
 			int freeGoalsLeft = getFreeGoalsLeft(current);
 			if (freeGoalsLeft > 0) {
 				freeGoalsLeft--;
+				if (!macroApplies(current, boxToMove, freeGoalsLeft))
+					return null;
 				List<GameState> path = new ArrayList<>();
 				Solution solution = solutionsToGoals.get(freeGoalsLeft);
 				Deque<Deque<Move>> solutionPath = solution.getPath();
@@ -831,16 +860,15 @@ public class ForwardsGameState extends AbstractGameState {
 				GameState lastGameState = current;
 				for (Deque<Move> movesToHere : solutionPath) {
 					if (i > 0) {
-						if (i == 1) {
-							movesToInitialPosition.addAll(movesToHere);
-							movesToHere = movesToInitialPosition;
-						}
 						Player player = playerPositionsInSolutions.get(freeGoalsLeft).get(i);
-						Set<Box> newBoxes = new HashSet<>(current.getBoxes());
-						newBoxes.remove(boxToMove);
+						BitSet newBoxes = (BitSet) current.getBoxCells().clone();
+						newBoxes.clear(board.getCell(boxToMove.getLocation()));
+						Box oldBox = newBox;
 						newBox = boxPositionsInSolutions.get(freeGoalsLeft).get(i);
-						newBoxes.add(newBox);
-						lastGameState = new ForwardsGameState(board, player, newBoxes, movesToHere);
+						newBoxes.set(board.getCell(newBox.getLocation()));
+						int push = Push.encode(board.getCell(oldBox.getLocation()), movesToHere.getLast(),
+								Location.distance(oldBox.getLocation(), newBox.getLocation()));
+						lastGameState = new ForwardsGameState(board, player, newBoxes, board.hashBoxes(newBoxes), push);
 						path.add(lastGameState);
 					}
 					i++;
@@ -851,16 +879,34 @@ public class ForwardsGameState extends AbstractGameState {
 			return null;
 		}
 		
+		/*
+		 * Solution i was found on a board with only the box to move, where
+		 * the goals of solutions 0 to i were free and all other goals were
+		 * walls. It only applies if the area has no other boxes than those
+		 * on the goals it treated as walls.
+		 */
+		private boolean macroApplies(GameState current, Box boxToMove, int solution) {
+			Set<Location> filledGoals = new HashSet<>();
+			for (int i = solution + 1; i < boxPositionsInSolutions.size(); i++) {
+				List<Box> boxPositions = boxPositionsInSolutions.get(i);
+				filledGoals.add(boxPositions.get(boxPositions.size() - 1).getLocation());
+			}
+			BitSet allBoxes = current.getBoxCells();
+			for (Location square : squaresInArea) {
+				int cell = board.getCell(square);
+				if (cell >= 0 && allBoxes.get(cell) && !square.equals(boxToMove.getLocation())
+						&& !filledGoals.contains(square))
+					return false;
+			}
+			return true;
+		}
+		
 		private int getFreeGoalsLeft(GameState current) {
 			int freeGoalsLeft = goals.size();
-			Set<Box> allBoxes = current.getBoxes();
+			BitSet allBoxes = current.getBoxCells();
 			for (Goal goal : goals) {
-				for (Box box : allBoxes) {
-					if (goal.getLocation().equals(box.getLocation())) {
-						freeGoalsLeft--;
-						break;
-					}
-				}
+				if (allBoxes.get(board.getCell(goal.getLocation())))
+					freeGoalsLeft--;
 			}
 			return freeGoalsLeft;
 		}
@@ -1,6 +1,6 @@
+import java.util.BitSet;
 import java.util.Deque;
 import java.util.List;
-import java.util.Set;
 
 
 public interface GameState {
@@ -11,43 +11,54 @@ public interface GameState {
 	
 	boolean isDone();
 	List<GameState> getNextBoxStates ();
-	Deque<Move> getMovesToHere ();
+	
+	/**
+	 * Get the box move that leads to this state from its parent, encoded
+	 * as described in {@link Push}.
+	 * 
+	 * @return The push, or {@link Push#NONE} if only the player moved
+	 */
+	int getPush ();
+	
+	/**
+	 * Re-create the child of this state that a search reached with the
+	 * given push, adding the moves of the player from this state to the
+	 * child to moves. The player walk is found again with a BFS.
+	 * 
+	 * @param push The push leading to the child, see {@link Push}
+	 * @param playerCell The cell of the player in the child
+	 * @param moves The moves to add the player's moves to
+	 * @return The child, or <code>null</code> if it can't be reached from here
+	 */
+	GameState replay (int push, int playerCell, Deque<Move> moves);
+	
+	/**
+	 * Get a lower bound of the number of box moves left to finish, the cost
+	 * of the cheapest matching of boxes to goals, see {@link MatchingHeuristic}.
+	 * 
+	 * @return The number of box moves, or {@link MatchingHeuristic#NO_MATCHING}
+	 * if some box can't get to a goal of its own
+	 */
 	int getDistanceToGoal();
-	int difference (GameState gameState);
-	int numObstacles();
-	Set<Box> getBoxes();
+	BitSet getBoxCells();
+	
+	/**
+	 * Get the 64-bit Zobrist hash of this state, covering the boxes and
+	 * the normalized player position.
+	 * 
+	 * @return The hash of this state
+	 */
+	long getHash();
 	Location getPlayerLocation ();
-	GameState getPlayerMoveGameState (Location l);
-	List<GameState> tryGoalMacro();
-	void markBoxAsFinished (Box box);
 	
 	/**
-	 * Simple class used to keep track of the move performed on a box.
+	 * Get the board cell of the player.
+	 * 
+	 * @return The cell index of the player, or -1 if there is no player
 	 */
-	static class BoxMove {
-		final Box box;
-		final Move move;
-		
-		public BoxMove(Box box, Move move) {
-			this.box = box;
-			this.move = move;
-		}
-		
-		@Override public String toString() {
-			return box.toString() + " " + move.toString();
-		}
-		
-		@Override public int hashCode() {
-			return box.hashCode() + move.hashCode();
-		}
-		
-		@Override public boolean equals(Object o) {
-			if (o == this)
-				return true;
-			if (!(o instanceof BoxMove))
-				return false;
-			BoxMove bm = (BoxMove) o;
-			return box.equals(bm.box) && move.equals(bm.move);
-		}
-	}
+	int getPlayerCell ();
+	Board getBoard ();
+	GameState getPlayerMoveGameState (Location l);
+	List<GameState> tryGoalMacro();
+	void markBoxAsFinished (Box box);
 }
@@ -0,0 +1,229 @@
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * An iterative deepening A* search, for maps on which {@link AStarAlgorithm}
+ * runs out of memory.
+ * <p>
+ * Every iteration is a depth first search that cuts off the states whose
+ * f-score, weighed like the {@link SearchPolicy#DEFAULT default policy} of
+ * the A* search, is above a threshold. The next iteration raises the threshold to
+ * the lowest f-score that was cut off. Only the path to the current state
+ * and the children of the states on it are kept, so the memory grows with
+ * the depth of the solution rather than with the number of states. A small
+ * direct-mapped table of the states seen in the current iteration, with the
+ * g-score they were seen at, skips most of the states that are reached
+ * again by other paths.
+ */
+public class IDAStarAlgorithm implements Search {
+
+	// the number of entries of the table of seen states, a power of two
+	private static final int TABLE_SIZE = 1 << 18;
+
+	private final GameState start;
+	private final long[] seenHashes = new long[TABLE_SIZE];
+	private final int[] seenGScores = new int[TABLE_SIZE];
+	private final int[] seenIterations = new int[TABLE_SIZE];
+
+	// the path from the start to the current state
+	private final List<Frame> path = new ArrayList<>();
+	private int threshold;
+	private int nextThreshold = AStarAlgorithm.UNSOLVABLE;
+	private int iteration = 1;
+	private boolean isDone = false;
+	private boolean found = false;
+	private int expandedStates = 0;
+
+	public IDAStarAlgorithm(GameState start) {
+		this.start = start;
+		int cost = AStarAlgorithm.heuristic(start);
+		if (cost == AStarAlgorithm.UNSOLVABLE) {
+			isDone = true;
+		} else {
+			threshold = SearchPolicy.DEFAULT.priority(0, cost);
+			restart();
+		}
+	}
+
+	/**
+	 * Expand the next state of the search.
+	 *
+	 * @return <code>true</code> if the search is done, whether it found a
+	 * solution or not
+	 */
+	@Override public boolean nextStep() {
+		if (isDone)
+			return true;
+		if (path.isEmpty()) {
+			// the iteration is over without a solution
+			if (nextThreshold == AStarAlgorithm.UNSOLVABLE) {
+				isDone = true;
+				return true;
+			}
+			threshold = nextThreshold;
+			nextThreshold = AStarAlgorithm.UNSOLVABLE;
+			iteration++;
+			restart();
+			return false;
+		}
+
+		Frame frame = path.get(path.size() - 1);
+		if (frame.children == null)
+			expand(frame);
+		if (frame.next == frame.children.size()) {
+			path.remove(path.size() - 1);
+			return false;
+		}
+		Child child = frame.children.get(frame.next++);
+		int g = frame.g + 1;
+		int f = SearchPolicy.DEFAULT.priority(g, child.cost);
+		if (f > threshold) {
+			nextThreshold = Math.min(nextThreshold, f);
+			return false;
+		}
+		if (!visit(child.state, g))
+			return false;
+		path.add(new Frame(child.state, g, child.macro, child.macroIndex));
+		if (child.state.isDone()) {
+			found = true;
+			isDone = true;
+			return true;
+		}
+		return false;
+	}
+
+	private void restart() {
+		path.clear();
+		visit(start, 0);
+		path.add(new Frame(start, 0, null, 0));
+		if (start.isDone()) {
+			found = true;
+			isDone = true;
+		}
+	}
+
+	/*
+	 * Remember a state as seen at the given g-score in this iteration, or
+	 * return false if it was already seen at a g-score at most as high.
+	 */
+	private boolean visit(GameState state, int g) {
+		long hash = state.getHash();
+		int slot = (int) (hash ^ (hash >>> 32)) & (TABLE_SIZE - 1);
+		if (seenIterations[slot] == iteration && seenHashes[slot] == hash && seenGScores[slot] <= g)
+			return false;
+		seenIterations[slot] = iteration;
+		seenHashes[slot] = hash;
+		seenGScores[slot] = g;
+		return true;
+	}
+
+	/*
+	 * The children of a state are the next state of the goal macro it is
+	 * in the middle of, or of a goal macro that starts from it, or else its
+	 * next box states, the most promising first. Like in the A* search, the
+	 * last state of a macro doesn't try another macro.
+	 */
+	private void expand(Frame frame) {
+		frame.children = new ArrayList<>();
+		expandedStates++;
+		List<GameState> macro = frame.macro;
+		int macroIndex = frame.macroIndex;
+		if (macro == null) {
+			macro = frame.state.tryGoalMacro();
+			macroIndex = 0;
+		}
+		if (macro != null && macroIndex < macro.size()) {
+			GameState next = macro.get(macroIndex);
+			int cost = AStarAlgorithm.heuristic(next);
+			if (cost != AStarAlgorithm.UNSOLVABLE)
+				frame.children.add(new Child(next, cost, macro, macroIndex + 1));
+			return;
+		}
+		for (GameState next : frame.state.getNextBoxStates()) {
+			int cost = AStarAlgorithm.heuristic(next);
+			if (cost != AStarAlgorithm.UNSOLVABLE)
+				frame.children.add(new Child(next, cost, null, 0));
+		}
+		Collections.sort(frame.children, new Comparator<Child>() {
+			@Override public int compare(Child a, Child b) {
+				return Integer.compare(a.cost, b.cost);
+			}
+		});
+	}
+
+	@Override public boolean runUntil(long deadlineNanos) {
+		while (System.nanoTime() - deadlineNanos < 0)
+			if (nextStep())
+				return true;
+		return false;
+	}
+
+	@Override public boolean hasSolution() {
+		return found;
+	}
+
+	@Override public String getStatistics() {
+		return expandedStates + " expanded in " + iteration + " iterations, threshold " + threshold;
+	}
+
+	/**
+	 * Get the moves from the start to the solved state.
+	 *
+	 * @return The solution, which is empty if the search found none
+	 */
+	@Override public Solution getSolution() {
+		if (!found)
+			return AStarAlgorithm.newSolution(start);
+		int[] pushes = new int[path.size()];
+		int[] playerCells = new int[path.size()];
+		for (int i = 0; i < path.size(); i++) {
+			pushes[i] = path.get(i).state.getPush();
+			playerCells[i] = path.get(i).state.getPlayerCell();
+		}
+		Solution solution = AStarAlgorithm.newSolution(start);
+		AStarAlgorithm.replayPath(start, pushes, playerCells, solution);
+		return solution;
+	}
+
+	/**
+	 * Get the threshold of the current iteration.
+	 *
+	 * @return The highest f-score that is searched in this iteration
+	 */
+	public int getThreshold() {
+		return threshold;
+	}
+
+	private static final class Frame {
+		final GameState state;
+		final int g;
+		// the goal macro the state is part of, and the index of the next state in it
+		final List<GameState> macro;
+		final int macroIndex;
+		List<Child> children;
+		int next = 0;
+
+		Frame(GameState state, int g, List<GameState> macro, int macroIndex) {
+			this.state = state;
+			this.g = g;
+			this.macro = macro;
+			this.macroIndex = macroIndex;
+		}
+	}
+
+	private static final class Child {
+		final GameState state;
+		final int cost;
+		final List<GameState> macro;
+		final int macroIndex;
+
+		Child(GameState state, int cost, List<GameState> macro, int macroIndex) {
+			this.state = state;
+			this.cost = cost;
+			this.macro = macro;
+			this.macroIndex = macroIndex;
+		}
+	}
+}
@@ -1,43 +1,184 @@
 import java.io.BufferedReader;
+import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStreamReader;
+import java.io.PrintStream;
+import java.nio.file.Path;
+import java.nio.file.Paths;
 import java.util.ArrayList;
 import java.util.List;
 
 
 public class Main {
 	
+	// how often --metrics writes a snapshot
+	private static final long METRICS_INTERVAL_MILLIS = 1000;
 	
 	public static final void main (String[] args) throws IOException {
+		// --parallel, --ida, --bidirectional or --patterns directory choose
+		// the search, and the options are e.g. --policy greedy, see
+		// SearchPolicy.parse, --deadline 10000, which all searches stop at,
+		// --metrics metrics.jsonl and --trace trace.jsonl, see TraceAnalyzer
+		String mode = null;
+		String patternDirectory = null;
+		SearchPolicy policy = null;
+		long deadlineMillis = -1;
+		String metricsFile = null;
+		for (int i = 0; i < args.length; i++) {
+			String option = args[i];
+			if (option.equals("--parallel") || option.equals("--ida") || option.equals("--bidirectional")) {
+				mode = option;
+				continue;
+			}
+			if (i + 1 == args.length)
+				throw new IllegalArgumentException("Missing the value of option: " + option);
+			String value = args[++i];
+			if (option.equals("--patterns")) {
+				mode = "--bidirectional";
+				patternDirectory = value;
+			} else if (option.equals("--policy"))
+				policy = SearchPolicy.parse(value);
+			else if (option.equals("--deadline"))
+				deadlineMillis = Long.parseLong(value);
+			else if (option.equals("--metrics"))
+				metricsFile = value;
+			else if (option.equals("--trace"))
+				Trace.open(value);
+			else
+				throw new IllegalArgumentException("Unknown option: " + option);
+		}
+		if (metricsFile != null && mode != null && !mode.equals("--bidirectional"))
+			throw new IllegalArgumentException("Only the A* searches record metrics, not " + mode);
+		if (policy != null && "--ida".equals(mode))
+			throw new IllegalArgumentException("--ida always weighs like the default policy");
+		if (policy == null)
+			policy = SearchPolicy.DEFAULT;
+		PrintStream metrics = null;
+		if (metricsFile != null)
+			metrics = new PrintStream(new FileOutputStream(metricsFile), true, "UTF-8");
+		long startNanos = System.nanoTime();
+		// every search is traced, including the preprocessing of its boards
+		Trace.beginMap("stdin");
+		boolean isSolved;
+		if (mode == null)
+			isSolved = mainAStar(policy, startNanos, deadlineMillis, metrics);
+		else if (mode.equals("--parallel"))
+			isSolved = mainParallel(policy, startNanos, deadlineMillis);
+		else if (mode.equals("--ida"))
+			isSolved = mainIDA(startNanos, deadlineMillis);
+		else
+			isSolved = main2(policy, startNanos, deadlineMillis, metrics, patternDirectory);
+		Trace.close();
+		if (!isSolved)
+			System.exit(1);
+	}
+	
+	/*
+	 * Search until the search is done, or until the deadline if there is
+	 * one, and print the solution. A search that is still unsolved at its
+	 * deadline is reported on standard error instead.
+	 */
+	private static boolean solve(Search search, long startNanos, long deadlineMillis) {
+		if (deadlineMillis < 0) {
+			while(!search.nextStep());
+		} else if (!search.runUntil(startNanos + deadlineMillis * 1000000L) && !search.hasSolution()) {
+			System.err.println("unsolved after " + deadlineMillis + " ms: " + search.getStatistics());
+			return false;
+		}
+		Solution solution = search.getSolution();
+		System.out.println(solution);
+		return true;
+	}
+	
+	private static boolean mainAStar(SearchPolicy policy, long startNanos, long deadlineMillis,
+			PrintStream metrics) throws IOException {
 		List<String> boardStrings = read();
 		GameState gs = BackwardsGameState.calculateBoard(boardStrings);
-		AStarAlgorithm aStar = new AStarAlgorithm(gs);
-		while(!aStar.nextStep());
-		Solution solution = aStar.getSolution();
-		System.out.println(solution);
+		AStarAlgorithm aStar = new AStarAlgorithm(gs, policy);
+		if (metrics != null)
+			aStar.recordMetrics(metrics, METRICS_INTERVAL_MILLIS);
+		boolean isSolved = solve(aStar, startNanos, deadlineMillis);
+		if (metrics != null)
+			printMetrics(aStar.getMetrics(), metrics);
+		return isSolved;
 	}
 	
-	public static final void main2 (String... args) throws IOException {
+	private static void printMetrics(SearchMetrics.Snapshot snapshot, PrintStream metrics) {
+		metrics.println(snapshot.toJson());
+		metrics.close();
+		System.err.println(snapshot);
+	}
+	
+	/**
+	 * Like {@link #main}, but searches with one worker thread per core.
+	 * Run with <code>--parallel</code> to select it.
+	 * 
+	 * @param policy The policy of the workers
+	 * @param startNanos When the run started
+	 * @param deadlineMillis The time the search may take from the start, or
+	 * -1 to search until it is done
+	 * @return <code>false</code> if the search was stopped unsolved
+	 */
+	public static final boolean mainParallel (SearchPolicy policy, long startNanos, long deadlineMillis)
+			throws IOException {
+		List<String> boardStrings = read();
+		GameState gs = BackwardsGameState.calculateBoard(boardStrings);
+		return solve(new ParallelAStarAlgorithm(gs, policy), startNanos, deadlineMillis);
+	}
+	
+	/**
+	 * Like {@link #main}, but with an {@link IDAStarAlgorithm}, whose memory
+	 * only grows with the length of the solution. Run with
+	 * <code>--ida</code> to select it, for maps that the A* search runs out
+	 * of memory on.
+	 * 
+	 * @param startNanos When the run started
+	 * @param deadlineMillis The time the search may take from the start, or
+	 * -1 to search until it is done
+	 * @return <code>false</code> if the search was stopped unsolved
+	 */
+	public static final boolean mainIDA (long startNanos, long deadlineMillis) throws IOException {
+		List<String> boardStrings = read();
+		GameState gs = BackwardsGameState.calculateBoard(boardStrings);
+		return solve(new IDAStarAlgorithm(gs), startNanos, deadlineMillis);
+	}
+	
+	/**
+	 * Searches forwards and backwards at the same time, see
+	 * {@link BidirectionalSearch}. Run with <code>--bidirectional</code> to
+	 * select it, or with <code>--patterns &lt;directory&gt;</code> to also
+	 * load the deadlock patterns of the map from the directory before the
+	 * search and save them there after it, so that later runs don't have to
+	 * learn them again.
+	 * 
+	 * @param policy The policy of both searches
+	 * @param startNanos When the run started
+	 * @param deadlineMillis The time the search may take from the start, or
+	 * -1 to search until it is done
+	 * @param metrics Where to write the metrics of both searches to, or null
+	 * @param patterns The pattern directory, or null
+	 * @return <code>false</code> if the search was stopped unsolved
+	 */
+	public static final boolean main2 (SearchPolicy policy, long startNanos, long deadlineMillis,
+			PrintStream metrics, String patterns) throws IOException {
 		List<String> boardStrings = read();
 		final GameState start = ForwardsGameState.calculateBoard(boardStrings);
 		final GameState goal = BackwardsGameState.calculateBoard(boardStrings);
+		Path patternDirectory = patterns != null ? Paths.get(patterns) : null;
+		if (patternDirectory != null)
+			start.getBoard().getDeadlockPatterns().load(patternDirectory);
 		
-		AStarAlgorithm aStarForward = new AStarAlgorithm(start);
-		AStarAlgorithm aStarBackward = new AStarAlgorithm(goal);
-		aStarBackward.setOtherAStar(aStarForward);
-		aStarForward.setOtherAStar(aStarBackward);
-		
-		boolean isDone = false;
-		while(!isDone) {
-			isDone = isDone || aStarBackward.nextStep();
-			isDone = isDone || aStarBackward.nextStep();
-			isDone = isDone || aStarForward.nextStep();
-		}
-
-		Solution forwardSolution = aStarForward.getSolution();
-		Solution backwardSolution = aStarBackward.getSolution().getForwardSolution();
+		BidirectionalSearch search = new BidirectionalSearch(start, goal, policy);
+		if (metrics != null)
+			search.recordMetrics(metrics, METRICS_INTERVAL_MILLIS);
+		boolean isSolved = solve(search, startNanos, deadlineMillis);
+		// the patterns learned are sound whether or not the search finished
+		if (patternDirectory != null)
+			start.getBoard().getDeadlockPatterns().save(patternDirectory);
 		
-		System.out.println(forwardSolution.toString() + " " + backwardSolution.toString());
+		if (metrics != null)
+			printMetrics(search.getMetrics(), metrics);
+		return isSolved;
 	}
 	
 	public static List<String> read() throws IOException {
@@ -0,0 +1,215 @@
+import java.util.Arrays;
+import java.util.BitSet;
+
+/**
+ * A lower bound of the number of box moves left in a state: the cost of a
+ * minimum cost perfect matching of boxes to goals, where the cost of a box
+ * and a goal is their {@link Board#getGoalDistance goal distance}.
+ * <p>
+ * The matching is found with the Hungarian algorithm, keeping the dual
+ * potentials of the last fully matched set of boxes. A state that differs
+ * from that set by a single moved box only has to re-match that box, which
+ * takes O(n^2) rather than O(n^3) for n goals. Since the children of a state
+ * all differ from it by one box, the parent is matched once per expansion
+ * and every child is matched incrementally from it.
+ * <p>
+ * Boxes are rows and goals are columns. If there are fewer boxes than goals,
+ * the missing rows match any goal for free. Like {@link Reachability}, an
+ * instance must not be shared between threads; use
+ * {@link Board#getMatchingHeuristic()} to get the one of the current thread.
+ */
+public class MatchingHeuristic {
+
+	/**
+	 * The cost of a set of boxes that can't all get to different goals.
+	 */
+	public static final int NO_MATCHING = Integer.MAX_VALUE;
+
+	// the cost of an impossible box and goal pair, large enough to never be matched by choice
+	private static final int INFEASIBLE = 1 << 20;
+	private static final int INFINITY = Integer.MAX_VALUE;
+
+	private final Board board;
+	private final int size;
+
+	// the last fully matched set of boxes, 1-based like the algorithm
+	private final BitSet baseBoxes;
+	private final int[] baseRowCells;
+	private final int[] baseRows;
+	private final int[] baseRowPotentials;
+	private final int[] baseColumnPotentials;
+	private final int[] baseMatches;
+	private boolean hasBase = false;
+	private int baseCost;
+
+	// the matching being computed
+	private final int[] rowCells;
+	private final int[] rowPotentials;
+	private final int[] columnPotentials;
+	private final int[] matches;
+	private final int[] way;
+	private final int[] minimumSlack;
+	private final boolean[] used;
+	private final BitSet parentBoxes;
+
+	public MatchingHeuristic(Board board) {
+		this.board = board;
+		size = board.getNumberOfGoals();
+		baseBoxes = new BitSet(board.getNumberOfCells());
+		baseRowCells = new int[size + 1];
+		baseRows = new int[board.getNumberOfCells()];
+		baseRowPotentials = new int[size + 1];
+		baseColumnPotentials = new int[size + 1];
+		baseMatches = new int[size + 1];
+		rowCells = new int[size + 1];
+		rowPotentials = new int[size + 1];
+		columnPotentials = new int[size + 1];
+		matches = new int[size + 1];
+		way = new int[size + 1];
+		minimumSlack = new int[size + 1];
+		used = new boolean[size + 1];
+		parentBoxes = new BitSet(board.getNumberOfCells());
+	}
+
+	/**
+	 * Get the cost of matching the given boxes to goals. If the push is a
+	 * move of a single box from a set of boxes that was matched last, only
+	 * that box is re-matched.
+	 *
+	 * @param boxes The cells of the boxes
+	 * @param push The push that moved a box to get to these boxes, see
+	 * {@link Push}, or {@link Push#NONE}
+	 * @return The cost of the matching, or {@link #NO_MATCHING} if there is none
+	 */
+	public int getCost(BitSet boxes, int push) {
+		if (boxes.cardinality() > size)
+			return NO_MATCHING;
+		int from = push == Push.NONE ? -1 : Push.getCell(push);
+		int to = from < 0 ? -1 : movedTo(from, push);
+		if (to < 0 || boxes.get(from) || !boxes.get(to)) {
+			matchBase(boxes);
+			return toResult(baseCost);
+		}
+
+		parentBoxes.clear();
+		parentBoxes.or(boxes);
+		parentBoxes.clear(to);
+		parentBoxes.set(from);
+		if (!hasBase || !parentBoxes.equals(baseBoxes))
+			matchBase(parentBoxes);
+
+		System.arraycopy(baseRowCells, 0, rowCells, 0, size + 1);
+		System.arraycopy(baseRowPotentials, 0, rowPotentials, 0, size + 1);
+		System.arraycopy(baseColumnPotentials, 0, columnPotentials, 0, size + 1);
+		System.arraycopy(baseMatches, 0, matches, 0, size + 1);
+		int row = baseRows[from];
+		rowCells[row] = to;
+		for (int column = 1; column <= size; column++)
+			if (matches[column] == row)
+				matches[column] = 0;
+		// all column potentials are at most 0, so this keeps the row feasible
+		rowPotentials[row] = 0;
+		addRow(row);
+		return toResult(cost());
+	}
+
+	// the cell a push moves its box to, or -1 if it isn't a straight push
+	private int movedTo(int from, int push) {
+		Move direction = Push.getDirection(push);
+		int cell = from;
+		for (int i = 0; i < Push.getLength(push) && cell >= 0; i++)
+			cell = board.getNeighbor(cell, direction);
+		return cell;
+	}
+
+	private static int toResult(int cost) {
+		return cost >= INFEASIBLE ? NO_MATCHING : cost;
+	}
+
+	private void matchBase(BitSet boxes) {
+		for (int row = 1; row <= size; row++)
+			if (baseRowCells[row] >= 0)
+				baseRows[baseRowCells[row]] = 0;
+		Arrays.fill(rowCells, -1);
+		int row = 1;
+		for (int cell = boxes.nextSetBit(0); cell >= 0; cell = boxes.nextSetBit(cell + 1))
+			rowCells[row++] = cell;
+		Arrays.fill(rowPotentials, 0);
+		Arrays.fill(columnPotentials, 0);
+		Arrays.fill(matches, 0);
+		for (row = 1; row <= size; row++)
+			addRow(row);
+
+		baseBoxes.clear();
+		baseBoxes.or(boxes);
+		System.arraycopy(rowCells, 0, baseRowCells, 0, size + 1);
+		System.arraycopy(rowPotentials, 0, baseRowPotentials, 0, size + 1);
+		System.arraycopy(columnPotentials, 0, baseColumnPotentials, 0, size + 1);
+		System.arraycopy(matches, 0, baseMatches, 0, size + 1);
+		for (row = 1; row <= size; row++)
+			if (rowCells[row] >= 0)
+				baseRows[rowCells[row]] = row;
+		baseCost = cost();
+		hasBase = true;
+	}
+
+	private int cost(int row, int column) {
+		int cell = rowCells[row];
+		if (cell < 0)
+			return 0;
+		int distance = board.getGoalDistance(cell, column - 1);
+		return distance == Board.UNREACHABLE ? INFEASIBLE : distance;
+	}
+
+	private int cost() {
+		int cost = 0;
+		for (int column = 1; column <= size; column++)
+			cost += cost(matches[column], column);
+		return cost;
+	}
+
+	/*
+	 * Match an unmatched row along a shortest augmenting path, keeping the
+	 * potentials feasible and tight on the matched pairs. Column 0 is the
+	 * root of the alternating tree.
+	 */
+	private void addRow(int row) {
+		matches[0] = row;
+		int column = 0;
+		Arrays.fill(minimumSlack, INFINITY);
+		Arrays.fill(used, false);
+		do {
+			used[column] = true;
+			int matchedRow = matches[column];
+			int delta = INFINITY;
+			int next = 0;
+			for (int j = 1; j <= size; j++) {
+				if (used[j])
+					continue;
+				int slack = cost(matchedRow, j) - rowPotentials[matchedRow] - columnPotentials[j];
+				if (slack < minimumSlack[j]) {
+					minimumSlack[j] = slack;
+					way[j] = column;
+				}
+				if (minimumSlack[j] < delta) {
+					delta = minimumSlack[j];
+					next = j;
+				}
+			}
+			for (int j = 0; j <= size; j++) {
+				if (used[j]) {
+					rowPotentials[matches[j]] += delta;
+					columnPotentials[j] -= delta;
+				} else {
+					minimumSlack[j] -= delta;
+				}
+			}
+			column = next;
+		} while (matches[column] != 0);
+		do {
+			int previous = way[column];
+			matches[column] = matches[previous];
+			column = previous;
+		} while (column != 0);
+	}
+}
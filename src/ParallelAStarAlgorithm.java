@@ -0,0 +1,321 @@
+import java.util.List;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A parallel version of {@link AStarAlgorithm}, using hash distributed A*
+ * (HDA*).
+ * <p>
+ * Every worker thread owns the states whose hash maps to it, and keeps their
+ * g-scores and parents in a {@link TranspositionTable} of its own. A worker
+ * expands the best state of its own open set and sends every successor to
+ * the inbox of the worker that owns it, a lock-free queue it drains between
+ * expansions. Entries point to their parent by hash, since the parent may be
+ * owned by another worker.
+ * <p>
+ * Like the serial search, the search stops as soon as any worker expands a
+ * finished state. Bidirectional search isn't supported, and an anytime
+ * {@link SearchPolicy} orders the states like a weighted one, but doesn't
+ * go on after the first solution.
+ */
+public class ParallelAStarAlgorithm implements Search {
+
+	// how long nextStep waits for the workers before returning
+	private static final long STEP_MILLIS = 10;
+
+	private final GameState start;
+	private final SearchPolicy policy;
+	// the map of the trace, if any, which the workers time their phases for
+	private final String map = Trace.getMap();
+	private final Worker[] workers;
+	private Thread[] threads;
+	private final CountDownLatch finished = new CountDownLatch(1);
+	/*
+	 * The number of sent but unhandled states plus the number of open states
+	 * of all workers. A sender counts a state before its parent stops
+	 * counting, so this only reaches zero when the search space is exhausted.
+	 */
+	private final AtomicLong work = new AtomicLong();
+	private final AtomicBoolean found = new AtomicBoolean();
+	private volatile boolean isDone = false;
+	private long goalHash;
+	private volatile Throwable failure;
+
+	public ParallelAStarAlgorithm(GameState start) {
+		this(start, SearchPolicy.DEFAULT);
+	}
+
+	public ParallelAStarAlgorithm(GameState start, SearchPolicy policy) {
+		this(start, Runtime.getRuntime().availableProcessors(),
+				Runtime.getRuntime().maxMemory() / AStarAlgorithm.DEFAULT_MEMORY_FRACTION, policy);
+	}
+
+	public ParallelAStarAlgorithm(GameState start, int numberOfWorkers, long memoryBudget) {
+		this(start, numberOfWorkers, memoryBudget, SearchPolicy.DEFAULT);
+	}
+
+	/**
+	 * Create a search with the given number of worker threads, whose
+	 * transposition tables share roughly the given number of bytes.
+	 *
+	 * @param start The state to search from
+	 * @param numberOfWorkers The number of worker threads
+	 * @param memoryBudget The memory budget of all transposition tables in bytes
+	 * @param policy How the workers order their open states
+	 */
+	public ParallelAStarAlgorithm(GameState start, int numberOfWorkers, long memoryBudget,
+			SearchPolicy policy) {
+		if (numberOfWorkers < 1)
+			throw new IllegalArgumentException("Need at least one worker, got " + numberOfWorkers);
+		this.start = start;
+		this.policy = policy;
+		workers = new Worker[numberOfWorkers];
+		for (int i = 0; i < workers.length; i++)
+			workers[i] = new Worker(memoryBudget / numberOfWorkers);
+		work.incrementAndGet();
+		owner(start.getHash()).receive(start, 0, start.getHash(), true);
+	}
+
+	/**
+	 * Let the workers search for a while, starting them on the first call.
+	 *
+	 * @return <code>true</code> if the search is over
+	 */
+	@Override public boolean nextStep() {
+		if (threads == null) {
+			threads = new Thread[workers.length];
+			for (int i = 0; i < workers.length; i++) {
+				threads[i] = new Thread(workers[i], "astar-worker-" + i);
+				threads[i].setDaemon(true);
+				threads[i].start();
+			}
+		}
+		try {
+			if (!finished.await(STEP_MILLIS, TimeUnit.MILLISECONDS))
+				return false;
+			for (Thread thread : threads)
+				thread.join();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			return false;
+		}
+		if (failure != null)
+			throw new IllegalStateException("A search worker failed", failure);
+		// states still in the inboxes may be parents on the solution path
+		for (Worker worker : workers)
+			worker.drainInbox();
+		return true;
+	}
+
+	/**
+	 * Search until the search is done or the deadline has passed, whichever
+	 * comes first. The workers are stopped at the deadline, so the search
+	 * can't be resumed after it.
+	 *
+	 * @param deadlineNanos The deadline, as a {@link System#nanoTime()} value
+	 * @return <code>true</code> if the search was done before the deadline
+	 */
+	@Override public boolean runUntil(long deadlineNanos) {
+		while (System.nanoTime() - deadlineNanos < 0)
+			if (nextStep())
+				return true;
+		// the workers stop after their current expansion, which may still
+		// find a solution
+		finish(null);
+		nextStep();
+		return false;
+	}
+
+	@Override public boolean hasSolution() {
+		return found.get();
+	}
+
+	/**
+	 * Get a summary of how far the search got, which is only up to date
+	 * once the search is over.
+	 *
+	 * @return The numbers of expanded, open and known states of all workers
+	 */
+	@Override public String getStatistics() {
+		long expandedStates = 0;
+		long openStates = 0;
+		long knownStates = 0;
+		for (Worker worker : workers) {
+			expandedStates += worker.expandedStates;
+			openStates += worker.openSet.size();
+			knownStates += worker.table.size();
+		}
+		return expandedStates + " expanded, " + openStates + " open, " + knownStates + " known states";
+	}
+
+	/**
+	 * Get the moves from the start to the finished state that was found.
+	 *
+	 * @return The solution, which is empty if the search found none
+	 */
+	@Override public Solution getSolution() {
+		if (!found.get())
+			return AStarAlgorithm.newSolution(start);
+		int depth = 0;
+		for (long hash = goalHash; ; hash = parentHash(hash)) {
+			depth++;
+			if (hash == start.getHash())
+				break;
+		}
+		int[] pushes = new int[depth];
+		int[] playerCells = new int[depth];
+		long hash = goalHash;
+		for (int i = depth - 1; i >= 0; i--) {
+			TranspositionTable table = owner(hash).table;
+			int slot = table.find(hash);
+			pushes[i] = table.getPush(slot);
+			playerCells[i] = table.getPlayerCell(slot);
+			hash = table.getParentHash(slot);
+		}
+		Solution solution = AStarAlgorithm.newSolution(start);
+		AStarAlgorithm.replayPath(start, pushes, playerCells, solution);
+		return solution;
+	}
+
+	private long parentHash(long hash) {
+		TranspositionTable table = owner(hash).table;
+		return table.getParentHash(table.find(hash));
+	}
+
+	private Worker owner(long hash) {
+		// the table uses the low bits to place entries, so partition on the high ones
+		return workers[(int) ((hash >>> 40) % workers.length)];
+	}
+
+	private void finish(GameState goal) {
+		if (goal != null && found.compareAndSet(false, true))
+			goalHash = goal.getHash();
+		isDone = true;
+		finished.countDown();
+	}
+
+	private final class Worker implements Runnable {
+
+		final TranspositionTable table;
+		final BucketQueue<GameState> openSet = new BucketQueue<>();
+		final ConcurrentLinkedQueue<Message> inbox = new ConcurrentLinkedQueue<>();
+		// only read by other threads once the worker has stopped
+		int expandedStates = 0;
+
+		Worker(long memoryBudget) {
+			table = new TranspositionTable(memoryBudget, true);
+		}
+
+		@Override public void run() {
+			Trace.beginMap(map);
+			try {
+				while (!isDone) {
+					drainInbox();
+					GameState current = openSet.poll();
+					if (current == null) {
+						if (work.get() == 0)
+							finish(null);
+						else
+							Thread.yield();
+						continue;
+					}
+					// a goal macro of another state may have closed it meanwhile
+					if (!table.isClosed(table.find(current.getHash())))
+						expand(current);
+					work.decrementAndGet();
+				}
+			} catch (RuntimeException | Error e) {
+				failure = e;
+				finish(null);
+			} finally {
+				Trace.endMap();
+			}
+		}
+
+		void drainInbox() {
+			for (Message message = inbox.poll(); message != null; message = inbox.poll())
+				receive(message.state, message.g, message.parentHash, message.open);
+		}
+
+		private void expand(GameState current) {
+			if (current.isDone()) {
+				finish(current);
+				return;
+			}
+			int slot = table.find(current.getHash());
+			table.close(slot);
+			expandedStates++;
+			int g = table.getG(slot);
+			long parentHash = current.getHash();
+
+			List<GameState> goalMacro = current.tryGoalMacro();
+			if (goalMacro != null && !goalMacro.isEmpty()) {
+				// the macro states are closed on the way, and the last one
+				// is expanded by its owner instead of the current state
+				for (int i = 0; i < goalMacro.size(); i++) {
+					GameState state = goalMacro.get(i);
+					send(state, ++g, parentHash, i == goalMacro.size() - 1);
+					parentHash = state.getHash();
+				}
+				return;
+			}
+
+			for (GameState neighbor : current.getNextBoxStates())
+				send(neighbor, g + 1, parentHash, true);
+		}
+
+		private void send(GameState state, int g, long parentHash, boolean open) {
+			work.incrementAndGet();
+			Worker owner = owner(state.getHash());
+			if (owner == this)
+				receive(state, g, parentHash, open);
+			else
+				owner.inbox.add(new Message(state, g, parentHash, open));
+		}
+
+		void receive(GameState state, int g, long parentHash, boolean open) {
+			table.reserve(1);
+			int slot = table.find(state.getHash());
+			if (slot == TranspositionTable.NOT_FOUND) {
+				int costToGoal = open ? AStarAlgorithm.heuristic(state) : 0;
+				if (costToGoal != AStarAlgorithm.UNSOLVABLE)
+					slot = table.insert(state.getHash(), g, TranspositionTable.NOT_FOUND,
+							state.getPlayerCell(), state.getPush());
+				if (slot != TranspositionTable.NOT_FOUND) {
+					table.setParentHash(slot, parentHash);
+					if (open) {
+						// the state is counted as open from now on
+						openSet.add(state, policy.priority(g, costToGoal));
+						return;
+					}
+					table.close(slot);
+				}
+			} else if (!table.isClosed(slot) && g < table.getG(slot)) {
+				table.update(slot, g, TranspositionTable.NOT_FOUND, state.getPlayerCell(), state.getPush());
+				table.setParentHash(slot, parentHash);
+				if (open)
+					openSet.decreaseKey(state, policy.priority(g, AStarAlgorithm.heuristic(state)));
+				else
+					table.close(slot);
+			}
+			work.decrementAndGet();
+		}
+	}
+
+	private static final class Message {
+		final GameState state;
+		final int g;
+		final long parentHash;
+		final boolean open;
+
+		Message(GameState state, int g, long parentHash, boolean open) {
+			this.state = state;
+			this.g = g;
+			this.parentHash = parentHash;
+			this.open = open;
+		}
+	}
+}
@@ -0,0 +1,52 @@
+
+/**
+ * Packs the box move that leads from one state to the next into a single
+ * int, so that search nodes don't have to keep a list of {@link Move}'s.
+ * <p>
+ * A push is the cell the box started on, the direction it moved in and the
+ * number of squares it moved (more than one when it was pushed through a
+ * tunnel). In a backwards search the same encoding describes a pull. The
+ * moves the player walked before the push are not stored; they are found
+ * again with a BFS when the solution is reconstructed.
+ */
+public final class Push {
+
+	/**
+	 * The push of a state that was reached by walking the player only.
+	 */
+	public static final int NONE = -1;
+
+	private static final int DIRECTION_BITS = 2;
+	private static final int LENGTH_BITS = 10;
+	private static final int MAX_LENGTH = (1 << LENGTH_BITS) - 1;
+	private static final Move[] DIRECTIONS = Move.values();
+
+	private Push() {
+	}
+
+	/**
+	 * Encode a push.
+	 *
+	 * @param cell The cell of the box before the push
+	 * @param direction The direction the box is moved in
+	 * @param length The number of squares the box is moved
+	 * @return The encoded push
+	 */
+	public static int encode(int cell, Move direction, int length) {
+		if (length < 1 || length > MAX_LENGTH)
+			throw new IllegalArgumentException("Push length out of range: " + length);
+		return (cell << (LENGTH_BITS + DIRECTION_BITS)) | (length << DIRECTION_BITS) | direction.ordinal();
+	}
+
+	public static int getCell(int push) {
+		return push >>> (LENGTH_BITS + DIRECTION_BITS);
+	}
+
+	public static Move getDirection(int push) {
+		return DIRECTIONS[push & ((1 << DIRECTION_BITS) - 1)];
+	}
+
+	public static int getLength(int push) {
+		return (push >>> DIRECTION_BITS) & MAX_LENGTH;
+	}
+}
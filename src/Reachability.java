@@ -0,0 +1,109 @@
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Deque;
+import java.util.LinkedList;
+
+/**
+ * A BFS of the player over the cells of a {@link Board} that are free of
+ * walls and boxes, with buffers that are re-used between searches.
+ * <p>
+ * A single pass finds the reachable cells, the move that reached each of
+ * them and the top leftmost reachable cell, which is the normalized player
+ * position of a state. Visited cells are marked with the number of the
+ * search rather than cleared, so starting a search costs nothing.
+ * <p>
+ * The results are only valid until the next call to {@link #explore}, and
+ * an instance must not be shared between threads; use
+ * {@link Board#getReachability()} to get the one of the current thread.
+ */
+public class Reachability {
+
+	private static final Move[] MOVES = Move.values();
+
+	private final Board board;
+	private final int[] queue;
+	private final int[] visited;
+	private final byte[] cameFrom;
+	private int search = 0;
+	private int start;
+	private int topLeft;
+
+	public Reachability(Board board) {
+		this.board = board;
+		int cells = board.getNumberOfCells();
+		queue = new int[cells];
+		visited = new int[cells];
+		cameFrom = new byte[cells];
+	}
+
+	/**
+	 * Search the cells the player can reach from start.
+	 *
+	 * @param boxes The cells of the boxes blocking the player
+	 * @param start The cell of the player
+	 * @param target A cell to stop at once it's reached, or -1 to visit every
+	 * reachable cell
+	 */
+	public void explore(BitSet boxes, int start, int target) {
+		long traceStart = Trace.start();
+		if (++search == 0) { // the marks of old searches are about to be reused
+			Arrays.fill(visited, 0);
+			search = 1;
+		}
+		this.start = start;
+		topLeft = start;
+		int head = 0;
+		int tail = 0;
+		visited[start] = search;
+		queue[tail++] = start;
+		while (head < tail) {
+			int cell = queue[head++];
+			// cells are numbered row by row, so the top leftmost one has the lowest index
+			if (cell < topLeft)
+				topLeft = cell;
+			if (cell == target)
+				break;
+			for (Move move : MOVES) {
+				int neighbor = board.getNeighbor(cell, move);
+				if (neighbor < 0 || boxes.get(neighbor) || visited[neighbor] == search)
+					continue;
+				visited[neighbor] = search;
+				cameFrom[neighbor] = (byte) move.ordinal();
+				queue[tail++] = neighbor;
+			}
+		}
+		Trace.end(Trace.Phase.REACHABILITY, traceStart);
+	}
+
+	public boolean isReachable(int cell) {
+		return cell >= 0 && visited[cell] == search;
+	}
+
+	/**
+	 * Get the lowest reachable cell index. This is only the top leftmost
+	 * reachable cell if the last search didn't stop at a target.
+	 *
+	 * @return The top leftmost reachable cell
+	 */
+	public int getTopLeftCell() {
+		return topLeft;
+	}
+
+	/**
+	 * Get the shortest walk from the start of the last search to a cell.
+	 *
+	 * @param cell The cell to walk to
+	 * @return The moves of the walk, or <code>null</code> if cell wasn't reached
+	 */
+	public Deque<Move> getPathTo(int cell) {
+		if (!isReachable(cell))
+			return null;
+		Deque<Move> path = new LinkedList<>();
+		while (cell != start) {
+			Move move = MOVES[cameFrom[cell]];
+			path.addFirst(move);
+			cell = board.getNeighbor(cell, move.inverse());
+		}
+		return path;
+	}
+}
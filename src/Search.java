@@ -0,0 +1,46 @@
+/**
+ * A search for the solution of a map, which runs a step at a time so that
+ * it can be stopped at a deadline, such as {@link AStarAlgorithm}.
+ */
+public interface Search {
+
+	/**
+	 * Search a little further.
+	 *
+	 * @return <code>true</code> if the search is done, whether it found a
+	 * solution or not
+	 */
+	boolean nextStep();
+
+	/**
+	 * Search until the search is done or the deadline has passed, whichever
+	 * comes first.
+	 *
+	 * @param deadlineNanos The deadline, as a {@link System#nanoTime()} value
+	 * @return <code>true</code> if the search is done
+	 */
+	boolean runUntil(long deadlineNanos);
+
+	/**
+	 * Check whether the search has found a solution, which may be before it
+	 * is done.
+	 *
+	 * @return <code>true</code> if {@link #getSolution()} has moves to return
+	 */
+	boolean hasSolution();
+
+	/**
+	 * Get the moves from the start to the solved state.
+	 *
+	 * @return The solution, which is empty if the search found none
+	 */
+	Solution getSolution();
+
+	/**
+	 * Get a summary of how far the search got, for reporting a search that
+	 * was stopped.
+	 *
+	 * @return A line of statistics
+	 */
+	String getStatistics();
+}
@@ -0,0 +1,152 @@
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * Counters of what the searches of a {@link Board} do, to tell whether a map
+ * is slow because of its branching, a weak heuristic or missed deadlocks.
+ * <p>
+ * Every thread counts in an array of its own, so counting is a thread local
+ * lookup and an increment without any synchronization. A
+ * {@link #snapshot(int) snapshot} sums the arrays of all threads; it may
+ * miss the very latest increments of other threads, which is fine for
+ * monitoring.
+ */
+public class SearchMetrics {
+
+	public enum Counter {
+		// states taken off the open set and expanded, and their children
+		EXPANDED,
+		GENERATED,
+		// children that were already known
+		DUPLICATES,
+		// children dropped because a box would get to a cell it can't get to
+		// a goal from, as freeze deadlocks, by a deadlock pattern, or because
+		// their boxes can't be matched to goals
+		SIMPLE_DEADLOCKS,
+		FREEZE_DEADLOCKS,
+		PATTERN_DEADLOCKS,
+		UNMATCHABLE,
+		// states whose children were limited to the pushes into a PI-corral
+		PI_CORRALS,
+		GOAL_MACROS;
+
+		final String key = name().toLowerCase();
+	}
+
+	private static final Counter[] COUNTERS = Counter.values();
+
+	private final long startNanos = System.nanoTime();
+	private final List<long[]> threadCounts = new CopyOnWriteArrayList<>();
+	private final ThreadLocal<ThreadCounts> counts = new ThreadLocal<ThreadCounts>() {
+		@Override protected ThreadCounts initialValue() {
+			ThreadCounts counts = new ThreadCounts();
+			threadCounts.add(counts.counts);
+			return counts;
+		}
+	};
+
+	/**
+	 * The counters of a thread, and whether it is counting right now.
+	 */
+	private static final class ThreadCounts {
+		final long[] counts = new long[COUNTERS.length];
+		boolean isCounting = true;
+	}
+
+	public void increment(Counter counter) {
+		ThreadCounts thread = counts.get();
+		if (thread.isCounting)
+			thread.counts[counter.ordinal()]++;
+	}
+
+	/**
+	 * Stop or go on counting on the current thread, so that the sub-searches
+	 * that only help a search, such as the proofs of deadlock patterns, don't
+	 * count as its work.
+	 *
+	 * @param isCounting Whether to count from now on
+	 */
+	public void setCounting(boolean isCounting) {
+		counts.get().isCounting = isCounting;
+	}
+
+	/**
+	 * Take a snapshot of the counters, and of the gauges that aren't
+	 * counted here.
+	 *
+	 * @param openStates The number of open states of the search
+	 * @return The snapshot
+	 */
+	public Snapshot snapshot(int openStates) {
+		long[] totals = new long[COUNTERS.length];
+		for (long[] counts : threadCounts)
+			for (int i = 0; i < totals.length; i++)
+				totals[i] += counts[i];
+		Runtime runtime = Runtime.getRuntime();
+		return new Snapshot((System.nanoTime() - startNanos) / 1000000, totals, openStates,
+				runtime.totalMemory() - runtime.freeMemory());
+	}
+
+	/**
+	 * The counters at one point in time.
+	 */
+	public static final class Snapshot {
+
+		private final long millis;
+		private final long[] counts;
+		private final int openStates;
+		private final long heapBytes;
+
+		Snapshot(long millis, long[] counts, int openStates, long heapBytes) {
+			this.millis = millis;
+			this.counts = counts;
+			this.openStates = openStates;
+			this.heapBytes = heapBytes;
+		}
+
+		public long get(Counter counter) {
+			return counts[counter.ordinal()];
+		}
+
+		/**
+		 * Add up the snapshots of two searches that run together, such as
+		 * the two sides of a {@link BidirectionalSearch}. Both are taken in
+		 * the same JVM, so the time and the heap are the larger of the two.
+		 *
+		 * @param other The snapshot of the other search
+		 * @return The sums
+		 */
+		public Snapshot plus(Snapshot other) {
+			long[] sums = new long[counts.length];
+			for (int i = 0; i < sums.length; i++)
+				sums[i] = counts[i] + other.counts[i];
+			return new Snapshot(Math.max(millis, other.millis), sums, openStates + other.openStates,
+					Math.max(heapBytes, other.heapBytes));
+		}
+
+		/**
+		 * Format the snapshot as a single line JSON object.
+		 *
+		 * @return The JSON line, without a line break
+		 */
+		public String toJson() {
+			StringBuilder sb = new StringBuilder();
+			sb.append("{\"millis\":").append(millis);
+			for (Counter counter : COUNTERS)
+				sb.append(",\"").append(counter.key).append("\":").append(get(counter));
+			sb.append(",\"open\":").append(openStates);
+			sb.append(",\"heap_bytes\":").append(heapBytes);
+			return sb.append('}').toString();
+		}
+
+		@Override public String toString() {
+			StringBuilder sb = new StringBuilder();
+			sb.append(String.format("%-18s %12d%n", "millis", millis));
+			for (Counter counter : COUNTERS)
+				sb.append(String.format("%-18s %12d%n", counter.key, get(counter)));
+			sb.append(String.format("%-18s %12d%n", "open", openStates));
+			sb.append(String.format("%-18s %12d", "heap_bytes", heapBytes));
+			return sb.toString();
+		}
+	}
+}
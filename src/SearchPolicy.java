@@ -0,0 +1,138 @@
+/**
+ * How a best-first search such as {@link AStarAlgorithm} orders its open
+ * states, by their number of pushes so far, g, and their estimated number
+ * of pushes left, h.
+ * <ul>
+ * <li>{@link Mode#GREEDY} only looks at h, to find some solution fast.</li>
+ * <li>{@link Mode#WEIGHTED} orders by g + w * h. A weight of 1 finds the
+ * solutions with the fewest pushes, higher weights find longer solutions
+ * while exploring far fewer states. The weight needn't be whole, such as
+ * 1.5, and w * h is rounded down.</li>
+ * <li>{@link Mode#ANYTIME} orders like {@link Mode#WEIGHTED}, but goes on
+ * searching for shorter solutions after the first one until its time
+ * limit is up or no shorter solution is left.</li>
+ * </ul>
+ * Policies are written as <code>greedy</code>, <code>weighted:w</code> or
+ * <code>anytime:w:milliseconds</code>, see {@link #parse(String)}.
+ */
+public final class SearchPolicy {
+
+	public enum Mode {
+		GREEDY, WEIGHTED, ANYTIME
+	}
+
+	/*
+	 * The matched goal distance is a lower bound, so a weight of 1 finds the
+	 * solutions with the fewest box moves, but explores far more states.
+	 */
+	public static final SearchPolicy DEFAULT = weighted(3);
+
+	private final Mode mode;
+	private final double weight;
+	private final long timeLimitMillis;
+
+	private SearchPolicy(Mode mode, double weight, long timeLimitMillis) {
+		if (!(weight >= 1))
+			throw new IllegalArgumentException("The weight must be at least 1, got " + weight);
+		if (timeLimitMillis < 0)
+			throw new IllegalArgumentException("The time limit must not be negative, got " + timeLimitMillis);
+		this.mode = mode;
+		this.weight = weight;
+		this.timeLimitMillis = timeLimitMillis;
+	}
+
+	public static SearchPolicy greedy() {
+		return new SearchPolicy(Mode.GREEDY, 1, 0);
+	}
+
+	public static SearchPolicy weighted(double weight) {
+		return new SearchPolicy(Mode.WEIGHTED, weight, 0);
+	}
+
+	/**
+	 * Get an anytime weighted policy.
+	 *
+	 * @param weight The weight of h
+	 * @param timeLimitMillis How long to go on improving the solution, from
+	 * the start of the search
+	 * @return The policy
+	 */
+	public static SearchPolicy anytime(double weight, long timeLimitMillis) {
+		return new SearchPolicy(Mode.ANYTIME, weight, timeLimitMillis);
+	}
+
+	/**
+	 * Parse a policy written as <code>greedy</code>, <code>weighted:w</code>
+	 * or <code>anytime:w:milliseconds</code>.
+	 *
+	 * @param policy The written policy
+	 * @return The policy
+	 * @throws IllegalArgumentException If the policy can't be parsed
+	 */
+	public static SearchPolicy parse(String policy) {
+		String[] parts = policy.trim().split(":");
+		try {
+			switch (parts[0]) {
+			case "greedy":
+				if (parts.length == 1)
+					return greedy();
+				break;
+			case "weighted":
+				if (parts.length == 2)
+					return weighted(Double.parseDouble(parts[1]));
+				break;
+			case "anytime":
+				if (parts.length == 3)
+					return anytime(Double.parseDouble(parts[1]), Long.parseLong(parts[2]));
+				break;
+			}
+		} catch (NumberFormatException e) {
+			throw new IllegalArgumentException("Bad number in search policy: " + policy, e);
+		}
+		throw new IllegalArgumentException("Unknown search policy: " + policy
+				+ ", expected greedy, weighted:w or anytime:w:milliseconds");
+	}
+
+	/**
+	 * Get the priority of an open state, lower is expanded first.
+	 *
+	 * @param g The number of pushes to the state
+	 * @param h The estimated number of pushes left
+	 * @return The priority
+	 */
+	public int priority(int g, int h) {
+		return mode == Mode.GREEDY ? h : (int) (g + weight * h);
+	}
+
+	public Mode getMode() {
+		return mode;
+	}
+
+	public boolean isAnytime() {
+		return mode == Mode.ANYTIME;
+	}
+
+	public double getWeight() {
+		return weight;
+	}
+
+	public long getTimeLimitMillis() {
+		return timeLimitMillis;
+	}
+
+	// whole weights are written without a fraction, as they are parsed
+	private String formatWeight() {
+		return weight == Math.rint(weight) ? Long.toString((long) weight) : Double.toString(weight);
+	}
+
+	@Override public String toString() {
+		switch (mode) {
+		case GREEDY:
+			return "greedy";
+		case WEIGHTED:
+			return "weighted:" + formatWeight();
+		default:
+			return "anytime:" + formatWeight() + ":" + timeLimitMillis;
+		}
+	}
+}
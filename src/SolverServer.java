@@ -0,0 +1,196 @@
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * A long-running solver that takes maps over a local TCP socket, so that
+ * the JVM is started and warmed up only once.
+ * <p>
+ * Run with <code>java SolverServer [--port p] [--workers n] [--budget ms]</code>.
+ * The server only listens on the loopback address. A client sends lines of
+ * text, any number of requests per connection:
+ * <pre>
+ * SOLVE &lt;id&gt; [deadline ms]
+ * &lt;the lines of the map&gt;
+ * END
+ * CANCEL &lt;id&gt;
+ * </pre>
+ * and gets one line per request, in the order the requests finish:
+ * <pre>
+ * &lt;id&gt; SOLVED &lt;moves&gt;
+ * &lt;id&gt; UNSOLVED &lt;search statistics&gt;
+ * &lt;id&gt; CANCELLED
+ * &lt;id&gt; ERROR &lt;message&gt;
+ * </pre>
+ * Requests are solved on a fixed pool of worker threads. A request is
+ * stopped at its deadline, which defaults to the budget of the server, or
+ * when it is cancelled. Request ids are only known to the connection that
+ * sent them, and closing a connection cancels its requests.
+ */
+public class SolverServer {
+
+	public static final int DEFAULT_PORT = 7457;
+	private static final long DEFAULT_BUDGET_MILLIS = 10000;
+
+	private final int port;
+	private final int numberOfWorkers;
+	private final long budgetMillis;
+	private final ExecutorService workers;
+
+	public SolverServer(int port, int numberOfWorkers, long budgetMillis) {
+		if (numberOfWorkers < 1)
+			throw new IllegalArgumentException("Need at least one worker, got " + numberOfWorkers);
+		this.port = port;
+		this.numberOfWorkers = numberOfWorkers;
+		this.budgetMillis = budgetMillis;
+		workers = Executors.newFixedThreadPool(numberOfWorkers);
+	}
+
+	public static void main(String[] args) throws IOException {
+		int port = DEFAULT_PORT;
+		int numberOfWorkers = Runtime.getRuntime().availableProcessors();
+		long budgetMillis = DEFAULT_BUDGET_MILLIS;
+		for (int i = 0; i + 1 < args.length; i += 2) {
+			if (args[i].equals("--port"))
+				port = Integer.parseInt(args[i + 1]);
+			else if (args[i].equals("--workers"))
+				numberOfWorkers = Integer.parseInt(args[i + 1]);
+			else if (args[i].equals("--budget"))
+				budgetMillis = Long.parseLong(args[i + 1]);
+			else
+				throw new IllegalArgumentException("Unknown option: " + args[i]);
+		}
+		new SolverServer(port, numberOfWorkers, budgetMillis).serve();
+	}
+
+	/**
+	 * Accept connections until the process is stopped.
+	 *
+	 * @throws IOException If the server socket can't be opened
+	 */
+	public void serve() throws IOException {
+		try (ServerSocket server = new ServerSocket(port, 50, InetAddress.getLoopbackAddress())) {
+			System.err.println("listening on " + server.getLocalSocketAddress());
+			while (true) {
+				final Socket socket = server.accept();
+				Thread connection = new Thread(new Runnable() {
+					@Override public void run() {
+						handle(socket);
+					}
+				}, "solver-connection-" + socket.getPort());
+				connection.setDaemon(true);
+				connection.start();
+			}
+		}
+	}
+
+	private void handle(Socket socket) {
+		// the cancellation flags of the requests of this connection being solved, by id
+		Map<String, AtomicBoolean> requests = new ConcurrentHashMap<>();
+		try (BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream(), StandardCharsets.UTF_8));
+				PrintWriter out = new PrintWriter(new OutputStreamWriter(socket.getOutputStream(), StandardCharsets.UTF_8))) {
+			String line;
+			while ((line = in.readLine()) != null) {
+				String[] words = line.trim().split("\\s+");
+				if (words[0].equals("SOLVE") && (words.length == 2 || words.length == 3)) {
+					List<String> map = new ArrayList<>();
+					while ((line = in.readLine()) != null && !line.equals("END"))
+						map.add(line);
+					if (line == null)
+						break;
+					long deadlineMillis = budgetMillis;
+					try {
+						if (words.length == 3)
+							deadlineMillis = Long.parseLong(words[2]);
+					} catch (NumberFormatException e) {
+						respond(out, words[1], "ERROR bad deadline " + words[2]);
+						continue;
+					}
+					AtomicBoolean cancelled = new AtomicBoolean();
+					if (requests.putIfAbsent(words[1], cancelled) != null) {
+						respond(out, words[1], "ERROR a request with this id is running");
+						continue;
+					}
+					submit(words[1], map, deadlineMillis, requests, cancelled, out);
+				} else if (words[0].equals("CANCEL") && words.length == 2) {
+					AtomicBoolean cancelled = requests.get(words[1]);
+					if (cancelled != null)
+						cancelled.set(true);
+				} else if (!line.trim().isEmpty()) {
+					respond(out, "-", "ERROR unknown request: " + line);
+				}
+			}
+		} catch (IOException e) {
+			// the client went away, which cancels its requests below
+		} finally {
+			for (AtomicBoolean cancelled : requests.values())
+				cancelled.set(true);
+			try {
+				socket.close();
+			} catch (IOException e) {
+				// already gone
+			}
+		}
+	}
+
+	private void submit(final String id, final List<String> map, final long deadlineMillis,
+			final Map<String, AtomicBoolean> requests, final AtomicBoolean cancelled, final PrintWriter out) {
+		final long start = System.nanoTime();
+		workers.execute(new Runnable() {
+			@Override public void run() {
+				try {
+					respond(out, id, solve(map, start + deadlineMillis * 1000000L, cancelled));
+				} finally {
+					requests.remove(id, cancelled);
+				}
+			}
+		});
+	}
+
+	private String solve(List<String> map, long deadlineNanos, AtomicBoolean cancelled) {
+		GameState gs = null;
+		try {
+			if (cancelled.get())
+				return "CANCELLED";
+			gs = BackwardsGameState.calculateBoard(map);
+			// the searches running at the same time share the memory
+			long memoryBudget = Runtime.getRuntime().maxMemory()
+					/ AStarAlgorithm.DEFAULT_MEMORY_FRACTION / numberOfWorkers;
+			AStarAlgorithm aStar = new AStarAlgorithm(gs, memoryBudget);
+			boolean isDone = false;
+			while (!isDone && !cancelled.get() && System.nanoTime() - deadlineNanos < 0)
+				isDone = aStar.nextStep();
+			if (aStar.hasSolution())
+				return "SOLVED " + aStar.getSolution();
+			if (cancelled.get())
+				return "CANCELLED";
+			return "UNSOLVED " + aStar.getStatistics();
+		} catch (RuntimeException | OutOfMemoryError e) {
+			return "ERROR " + e;
+		} finally {
+			// the worker goes on with other requests
+			if (gs != null)
+				gs.getBoard().releaseThreadBuffers();
+		}
+	}
+
+	private static void respond(PrintWriter out, String id, String response) {
+		synchronized (out) {
+			out.println(id + " " + response);
+			out.flush();
+		}
+	}
+}
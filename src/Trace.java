@@ -0,0 +1,177 @@
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.PrintStream;
+
+/**
+ * An optional trace of how long the phases of solving a map take, written
+ * as JSON lines to a file and summed up by {@link TraceAnalyzer}.
+ * <p>
+ * A phase is timed by
+ * <pre>
+ * long start = Trace.start();
+ * ...
+ * Trace.end(Trace.Phase.SUCCESSORS, start);
+ * </pre>
+ * which only reads a volatile field when no trace is open. Phases that run
+ * once per map, such as the preprocessing, are written as a line of their
+ * own every time. Phases that run for every state, such as generating the
+ * successors, are summed per thread and written when the thread is done
+ * with its map, see {@link #endMap()}. Phases may be nested, so their times
+ * overlap: the successors include the reachability searches they make.
+ * Every line looks like
+ * <pre>
+ * {"map":"maps/kattis/1.map","phase":"successors","count":1234,"nanos":5678}
+ * </pre>
+ */
+public final class Trace {
+
+	public enum Phase {
+		// the once per map phases
+		CALCULATE_BOARD(false),
+		GOAL_DISTANCES(false),
+		PREPROCESS(false),
+		GOAL_AREA(false),
+		// the per state phases
+		SUCCESSORS(true),
+		REACHABILITY(true),
+		HASHING(true),
+		OPEN_SET(true);
+
+		final boolean isSummed;
+		final String key = name().toLowerCase();
+
+		private Phase(boolean isSummed) {
+			this.isSummed = isSummed;
+		}
+	}
+
+	private static final Phase[] PHASES = Phase.values();
+
+	// the open trace, or null
+	private static volatile Trace trace;
+
+	private final PrintStream out;
+	private final ThreadLocal<Sums> sums = new ThreadLocal<Sums>() {
+		@Override protected Sums initialValue() {
+			return new Sums();
+		}
+	};
+
+	private Trace(PrintStream out) {
+		this.out = out;
+	}
+
+	/**
+	 * The map a thread is working on and its sums of the per state phases.
+	 */
+	private static final class Sums {
+		String map = "-";
+		final long[] counts = new long[PHASES.length];
+		final long[] nanos = new long[PHASES.length];
+	}
+
+	/**
+	 * Start tracing to a file, replacing its contents.
+	 *
+	 * @param file The file to write the trace to
+	 * @throws IOException If the file can't be opened
+	 */
+	public static synchronized void open(String file) throws IOException {
+		close();
+		trace = new Trace(new PrintStream(new FileOutputStream(file), false, "UTF-8"));
+	}
+
+	/**
+	 * Stop tracing, writing the sums of the current thread.
+	 */
+	public static synchronized void close() {
+		Trace closing = trace;
+		if (closing == null)
+			return;
+		endMap();
+		trace = null;
+		closing.out.close();
+	}
+
+	/**
+	 * Attribute the phases of the current thread to a map from now on.
+	 *
+	 * @param map The name of the map
+	 */
+	public static void beginMap(String map) {
+		Trace current = trace;
+		if (current == null)
+			return;
+		current.flush(current.sums.get());
+		current.sums.get().map = map;
+	}
+
+	/**
+	 * Get the map the current thread is working on, for handing it on to
+	 * the threads that help it.
+	 *
+	 * @return The name of the map, or "-" if there is none or no trace is open
+	 */
+	public static String getMap() {
+		Trace current = trace;
+		return current == null ? "-" : current.sums.get().map;
+	}
+
+	/**
+	 * Write the sums of the per state phases of the current thread for its
+	 * map, and start over.
+	 */
+	public static void endMap() {
+		Trace current = trace;
+		if (current != null)
+			current.flush(current.sums.get());
+	}
+
+	/**
+	 * Start timing a phase.
+	 *
+	 * @return The start time to pass to {@link #end}, or 0 if no trace is open
+	 */
+	public static long start() {
+		return trace == null ? 0 : System.nanoTime();
+	}
+
+	/**
+	 * Finish timing a phase.
+	 *
+	 * @param phase The phase
+	 * @param start What {@link #start()} returned
+	 */
+	public static void end(Phase phase, long start) {
+		Trace current = trace;
+		if (current == null || start == 0)
+			return;
+		long nanos = System.nanoTime() - start;
+		Sums sums = current.sums.get();
+		if (phase.isSummed) {
+			sums.counts[phase.ordinal()]++;
+			sums.nanos[phase.ordinal()] += nanos;
+		} else {
+			current.write(sums.map, phase, 1, nanos);
+		}
+	}
+
+	private void flush(Sums sums) {
+		for (Phase phase : PHASES) {
+			if (sums.counts[phase.ordinal()] == 0)
+				continue;
+			write(sums.map, phase, sums.counts[phase.ordinal()], sums.nanos[phase.ordinal()]);
+			sums.counts[phase.ordinal()] = 0;
+			sums.nanos[phase.ordinal()] = 0;
+		}
+		out.flush();
+	}
+
+	private void write(String map, Phase phase, long count, long nanos) {
+		String line = "{\"map\":\"" + map.replace("\\", "\\\\").replace("\"", "\\\"")
+				+ "\",\"phase\":\"" + phase.key + "\",\"count\":" + count + ",\"nanos\":" + nanos + "}";
+		synchronized (out) {
+			out.println(line);
+		}
+	}
+}
@@ -0,0 +1,81 @@
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Sums up the {@link Trace} files given as arguments: for every map, the
+ * number of times, the total time and the mean time of every phase, the
+ * slowest phase first.
+ */
+public class TraceAnalyzer {
+
+	private static final Pattern LINE = Pattern.compile(
+			"\\{\"map\":\"((?:[^\"\\\\]|\\\\.)*)\",\"phase\":\"(\\w+)\",\"count\":(\\d+),\"nanos\":(\\d+)\\}");
+
+	// the count and nanoseconds of every phase of every map, in the order they were first seen
+	private final Map<String, Map<String, long[]>> maps = new LinkedHashMap<>();
+
+	public static void main(String[] args) throws IOException {
+		if (args.length == 0) {
+			System.err.println("usage: TraceAnalyzer trace.jsonl...");
+			System.exit(2);
+		}
+		TraceAnalyzer analyzer = new TraceAnalyzer();
+		for (String file : args)
+			analyzer.read(file);
+		analyzer.print();
+	}
+
+	public void read(String file) throws IOException {
+		try (BufferedReader reader = Files.newBufferedReader(Paths.get(file), StandardCharsets.UTF_8)) {
+			String line;
+			while ((line = reader.readLine()) != null) {
+				Matcher matcher = LINE.matcher(line.trim());
+				if (!matcher.matches())
+					throw new IOException("Not a trace line in " + file + ": " + line);
+				String map = matcher.group(1).replace("\\\"", "\"").replace("\\\\", "\\");
+				Map<String, long[]> phases = maps.get(map);
+				if (phases == null) {
+					phases = new LinkedHashMap<>();
+					maps.put(map, phases);
+				}
+				long[] sums = phases.get(matcher.group(2));
+				if (sums == null) {
+					sums = new long[2];
+					phases.put(matcher.group(2), sums);
+				}
+				sums[0] += Long.parseLong(matcher.group(3));
+				sums[1] += Long.parseLong(matcher.group(4));
+			}
+		}
+	}
+
+	public void print() {
+		for (Map.Entry<String, Map<String, long[]>> map : maps.entrySet()) {
+			System.out.println(map.getKey());
+			System.out.println(String.format("  %-16s %12s %12s %12s", "phase", "count", "total ms", "mean us"));
+			List<Map.Entry<String, long[]>> phases = new ArrayList<>(map.getValue().entrySet());
+			Collections.sort(phases, new Comparator<Map.Entry<String, long[]>>() {
+				@Override public int compare(Map.Entry<String, long[]> a, Map.Entry<String, long[]> b) {
+					return Long.compare(b.getValue()[1], a.getValue()[1]);
+				}
+			});
+			for (Map.Entry<String, long[]> phase : phases) {
+				long count = phase.getValue()[0];
+				long nanos = phase.getValue()[1];
+				System.out.println(String.format("  %-16s %12d %12.1f %12.2f", phase.getKey(), count,
+						nanos / 1e6, nanos / 1e3 / count));
+			}
+		}
+	}
+}
@@ -0,0 +1,298 @@
+import java.util.Arrays;
+
+/**
+ * An open-addressing hash table of search nodes, keyed by the 64-bit
+ * {@link GameState#getHash()} of their states.
+ * <p>
+ * The table replaces the maps the A* algorithm used to keep per state. Every
+ * entry, or slot, holds the g-score of a state, the slot of its parent, the
+ * player cell, the {@link Push} leading to it from its parent and whether
+ * it is open or closed. All of this is stored in parallel primitive arrays, so no
+ * {@link GameState} is kept alive by the table.
+ * <p>
+ * The table grows by doubling until it reaches the capacity allowed by its
+ * memory budget, and is never filled beyond three quarters of its capacity.
+ * Once it is that full, a new entry replaces a closed entry without
+ * children in its probe window, preferring the one with the highest
+ * g-score. Open entries and entries that other entries point to as their
+ * parent are never replaced, so every path in the table stays intact. If
+ * there is nothing to replace, {@link #insert} fails and the caller has to
+ * drop the state.
+ * <p>
+ * A table can also keep the hash of the parent of every entry, for searches
+ * whose states are spread over several tables. The parents of such entries
+ * may be in another table, so they can't be counted, and these tables never
+ * replace entries.
+ */
+public class TranspositionTable {
+
+	public static final int NOT_FOUND = -1;
+
+	// hash, g-score, parent, number of children, player cell, flags and push
+	static final int BYTES_PER_ENTRY = 8 + 4 + 4 + 4 + 4 + 1 + 4;
+
+	private static final int INITIAL_CAPACITY = 1 << 10;
+	private static final int PROBE_LIMIT = 16;
+
+	private static final byte OCCUPIED = 1;
+	private static final byte CLOSED = 2;
+
+	private final int maxCapacity;
+	private final boolean keepParentHashes;
+
+	private long[] hashes;
+	private int[] gScores;
+	private int[] parents;
+	private int[] children;
+	private int[] playerCells;
+	private byte[] flags;
+	private int[] pushes;
+	private long[] parentHashes;
+	private int mask;
+	private int size = 0;
+	private int replacements = 0;
+
+	/**
+	 * Create a table that will use at most roughly the given number of bytes.
+	 *
+	 * @param memoryBudget The memory budget in bytes
+	 */
+	public TranspositionTable(long memoryBudget) {
+		this(memoryBudget, false);
+	}
+
+	/**
+	 * Create a table that will use at most roughly the given number of bytes,
+	 * optionally keeping the parent hash of every entry.
+	 *
+	 * @param memoryBudget The memory budget in bytes
+	 * @param keepParentHashes Whether to keep parent hashes, see {@link #setParentHash}
+	 */
+	public TranspositionTable(long memoryBudget, boolean keepParentHashes) {
+		this.keepParentHashes = keepParentHashes;
+		int bytesPerEntry = keepParentHashes ? BYTES_PER_ENTRY + 8 : BYTES_PER_ENTRY;
+		long entries = Math.max(INITIAL_CAPACITY, memoryBudget / bytesPerEntry);
+		maxCapacity = (int) Long.highestOneBit(Math.min(entries, 1 << 30));
+		allocate(Math.min(INITIAL_CAPACITY, maxCapacity));
+	}
+
+	private void allocate(int capacity) {
+		hashes = new long[capacity];
+		gScores = new int[capacity];
+		parents = new int[capacity];
+		children = new int[capacity];
+		playerCells = new int[capacity];
+		flags = new byte[capacity];
+		pushes = new int[capacity];
+		if (keepParentHashes)
+			parentHashes = new long[capacity];
+		mask = capacity - 1;
+	}
+
+	/**
+	 * Find the slot of the state with the given hash.
+	 *
+	 * @param hash The hash of the state
+	 * @return The slot, or {@link #NOT_FOUND}
+	 */
+	public int find(long hash) {
+		int slot = home(hash);
+		while (flags[slot] != 0) {
+			if (hashes[slot] == hash)
+				return slot;
+			slot = (slot + 1) & mask;
+		}
+		return NOT_FOUND;
+	}
+
+	/**
+	 * Make room for n more entries, growing the table if it's allowed to.
+	 * Growing moves entries to new slots, so slots found before calling
+	 * this must be looked up again. {@link #insert} never moves entries.
+	 *
+	 * @param n The number of entries about to be inserted
+	 */
+	public void reserve(int n) {
+		int capacity = hashes.length;
+		while (isFull(size + n, capacity) && capacity < maxCapacity)
+			capacity *= 2;
+		if (capacity != hashes.length)
+			rehash(capacity);
+	}
+
+	/**
+	 * Insert a new open entry.
+	 *
+	 * @param hash The hash of the state
+	 * @param g The g-score of the state
+	 * @param parent The slot of the parent, or {@link #NOT_FOUND} for a root
+	 * @param playerCell The cell of the player in the state
+	 * @param push The push leading from the parent to the state
+	 * @return The slot of the new entry, or {@link #NOT_FOUND} if the table is full
+	 */
+	public int insert(long hash, int g, int parent, int playerCell, int push) {
+		boolean full = isFull(size + 1, hashes.length);
+		int slot = home(hash);
+		int victim = NOT_FOUND;
+		for (int i = 0; flags[slot] != 0; i++) {
+			if (i < PROBE_LIMIT && slot != parent && isReplaceable(slot)
+					&& (victim == NOT_FOUND || gScores[slot] > gScores[victim]))
+				victim = slot;
+			slot = (slot + 1) & mask;
+		}
+		if (!full) {
+			size++;
+			victim = slot;
+		}
+		if (victim == NOT_FOUND)
+			return NOT_FOUND;
+		if (flags[victim] != 0) {
+			replacements++;
+			unlink(victim);
+		}
+		hashes[victim] = hash;
+		flags[victim] = OCCUPIED;
+		children[victim] = 0;
+		parents[victim] = NOT_FOUND;
+		update(victim, g, parent, playerCell, push);
+		return victim;
+	}
+
+	/**
+	 * Give an entry a new g-score and parent.
+	 *
+	 * @param slot The slot to update
+	 * @param g The new g-score
+	 * @param parent The new parent slot
+	 * @param playerCell The cell of the player in the state
+	 * @param push The push leading from the new parent to the state
+	 */
+	public void update(int slot, int g, int parent, int playerCell, int push) {
+		unlink(slot);
+		gScores[slot] = g;
+		parents[slot] = parent;
+		playerCells[slot] = playerCell;
+		pushes[slot] = push;
+		if (parent != NOT_FOUND)
+			children[parent]++;
+	}
+
+	private void unlink(int slot) {
+		if (parents[slot] != NOT_FOUND)
+			children[parents[slot]]--;
+	}
+
+	private static boolean isFull(long entries, int capacity) {
+		return entries * 4 > capacity * 3L;
+	}
+
+	private boolean isReplaceable(int slot) {
+		return !keepParentHashes && (flags[slot] & CLOSED) != 0 && children[slot] == 0;
+	}
+
+	private int home(long hash) {
+		long mixed = hash ^ (hash >>> 29) ^ (hash >>> 47);
+		return (int) mixed & mask;
+	}
+
+	private void rehash(int capacity) {
+		long[] oldHashes = hashes;
+		int[] oldGScores = gScores;
+		int[] oldParents = parents;
+		int[] oldChildren = children;
+		int[] oldPlayerCells = playerCells;
+		byte[] oldFlags = flags;
+		int[] oldPushes = pushes;
+		long[] oldParentHashes = parentHashes;
+		allocate(capacity);
+
+		int[] newSlots = new int[oldHashes.length];
+		Arrays.fill(newSlots, NOT_FOUND);
+		for (int old = 0; old < oldHashes.length; old++) {
+			if (oldFlags[old] == 0)
+				continue;
+			int slot = home(oldHashes[old]);
+			while (flags[slot] != 0)
+				slot = (slot + 1) & mask;
+			newSlots[old] = slot;
+			hashes[slot] = oldHashes[old];
+			gScores[slot] = oldGScores[old];
+			children[slot] = oldChildren[old];
+			playerCells[slot] = oldPlayerCells[old];
+			flags[slot] = oldFlags[old];
+			pushes[slot] = oldPushes[old];
+			if (keepParentHashes)
+				parentHashes[slot] = oldParentHashes[old];
+		}
+		for (int old = 0; old < oldHashes.length; old++) {
+			if (newSlots[old] != NOT_FOUND)
+				parents[newSlots[old]] = oldParents[old] == NOT_FOUND ? NOT_FOUND : newSlots[oldParents[old]];
+		}
+	}
+
+	public void close(int slot) {
+		flags[slot] |= CLOSED;
+	}
+
+	/**
+	 * Open a closed entry again, for searches that expand a state again when
+	 * they find a shorter path to it.
+	 *
+	 * @param slot The slot to open
+	 */
+	public void reopen(int slot) {
+		flags[slot] &= ~CLOSED;
+	}
+
+	public boolean isClosed(int slot) {
+		return (flags[slot] & CLOSED) != 0;
+	}
+
+	public int getG(int slot) {
+		return gScores[slot];
+	}
+
+	public int getParent(int slot) {
+		return parents[slot];
+	}
+
+	public int getPlayerCell(int slot) {
+		return playerCells[slot];
+	}
+
+	public int getPush(int slot) {
+		return pushes[slot];
+	}
+
+	/**
+	 * Set the hash of the parent of an entry, in a table that keeps them.
+	 *
+	 * @param slot The slot to update
+	 * @param parentHash The hash of the parent state
+	 */
+	public void setParentHash(int slot, long parentHash) {
+		parentHashes[slot] = parentHash;
+	}
+
+	public long getParentHash(int slot) {
+		return parentHashes[slot];
+	}
+
+	public int size() {
+		return size;
+	}
+
+	public int capacity() {
+		return hashes.length;
+	}
+
+	/**
+	 * Get the number of entries that have been replaced because the table
+	 * had reached its memory budget.
+	 *
+	 * @return The number of replaced entries
+	 */
+	public int getReplacements() {
+		return replacements;
+	}
+}